@@ -0,0 +1,96 @@
+package io.github.mthli.knife;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coverage check of the contain*() methods: one span query and a sweep over the sorted ranges,
+ * against the former span query per char compared as strings. Times go to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeCoverageBenchmark {
+    private static final String TAG = "KnifeCoverageBenchmark";
+    private static final int LENGTH = 20000;
+    private static final int ROUNDS = 20;
+
+    private SpannableStringBuilder text;
+
+    @Before
+    public void setUp() {
+        StringBuilder builder = new StringBuilder(LENGTH);
+        for (int i = 0; i < LENGTH; i++) {
+            builder.append(i % 80 == 79 ? '\n' : (char) ('a' + i % 26));
+        }
+        text = new SpannableStringBuilder(builder);
+
+        // Overlapping runs, as left behind by formatting the note piece by piece
+        for (int start = 0; start < LENGTH; start += 50) {
+            text.setSpan(new UnderlineSpan(), start, Math.min(LENGTH, start + 60), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    private boolean perChar(int start, int end) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            if (text.getSpans(i, i + 1, UnderlineSpan.class).length > 0) {
+                builder.append(text.subSequence(i, i + 1).toString());
+            }
+        }
+        return text.subSequence(start, end).toString().equals(builder.toString());
+    }
+
+    private boolean sweep(int start, int end) {
+        UnderlineSpan[] spans = text.getSpans(start, end, UnderlineSpan.class);
+        long[] ranges = new long[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            ranges[i] = (long) text.getSpanStart(spans[i]) << 32 | text.getSpanEnd(spans[i]);
+        }
+        return KnifeText.isCovered(ranges, ranges.length, start, end);
+    }
+
+    @Test
+    public void sameResult() {
+        int[][] selections = {{0, LENGTH}, {10, 20}, {LENGTH - 5, LENGTH}, {0, 1}, {123, 4567}};
+        for (int[] selection : selections) {
+            assertEquals(perChar(selection[0], selection[1]), sweep(selection[0], selection[1]));
+        }
+
+        text.removeSpan(text.getSpans(1000, 1001, UnderlineSpan.class)[0]);
+        text.removeSpan(text.getSpans(1000, 1001, UnderlineSpan.class)[0]);
+        assertFalse(sweep(0, LENGTH));
+        assertEquals(perChar(0, LENGTH), sweep(0, LENGTH));
+        assertEquals(perChar(0, 990), sweep(0, 990));
+    }
+
+    @Test
+    public void selectAll() {
+        // Warm up both before timing
+        perChar(0, LENGTH);
+        sweep(0, LENGTH);
+
+        long time = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue(perChar(0, LENGTH));
+        }
+        long perChar = (System.nanoTime() - time) / ROUNDS;
+
+        time = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue(sweep(0, LENGTH));
+        }
+        long sweep = (System.nanoTime() - time) / ROUNDS;
+
+        Log.i(TAG, "select all of " + LENGTH + " chars: per char " + perChar / 1000 + " us, sweep "
+                + sweep / 1000 + " us, " + (sweep > 0 ? perChar / sweep : perChar) + "x");
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link KnifeDiff#spanDifference(Spanned, Spanned)} only covers the spans which differ, and patching
+ * that range is enough to bring the spans to the target.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeDiffTest {
+    private static SpannableStringBuilder note() {
+        SpannableStringBuilder text = new SpannableStringBuilder("one two three four five");
+        text.setSpan(new StyleSpan(Typeface.BOLD), 0, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new UnderlineSpan(), 19, 23, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return text;
+    }
+
+    @Test
+    public void sameSpansHaveNoDifference() {
+        assertNull(KnifeDiff.spanDifference(note(), note()));
+    }
+
+    @Test
+    public void differenceCoversTheChangedSpansOnly() {
+        SpannableStringBuilder text = note();
+        SpannableStringBuilder target = note();
+        target.setSpan(new StyleSpan(Typeface.ITALIC), 8, 13, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        int[] range = KnifeDiff.spanDifference(text, target);
+        assertArrayEquals(new int[]{8, 13}, range);
+
+        KnifeDiff.patchSpans(text, range[0], range[1], KnifeSpanRecord.collect(target, range[0], range[1]));
+        assertNull(KnifeDiff.spanDifference(text, target));
+        assertEquals(KnifeTestDocuments.dump(target), KnifeTestDocuments.dump(text));
+    }
+}
@@ -0,0 +1,239 @@
+package io.github.mthli.knife;
+
+import android.content.ComponentCallbacks2;
+import android.text.SpannableStringBuilder;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Undo/redo round trips of {@link KnifeHistory}, and what is left after the history is trimmed
+ * or the text around it changes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeHistoryTest {
+    // Far apart enough that every edit starts a new session
+    private static final long STEP = 10 * KnifeHistory.DEFAULT_SESSION_TIMEOUT;
+
+    private SpannableStringBuilder text;
+    private KnifeHistory history;
+    private long time;
+
+    @Before
+    public void setUp() {
+        text = new SpannableStringBuilder();
+        history = new KnifeHistory(100, 0);
+        time = 0;
+    }
+
+    private void type(String s) {
+        int start = text.length();
+        KnifeSpanRecord[] spans = KnifeSpanRecord.collect(text, start, start);
+        text.append(s);
+        history.push(new Regret(start, "", s, spans, spans, start, text.length()), time);
+        time += STEP;
+    }
+
+    private void undoAll() {
+        while (history.canUndo()) {
+            assertTrue(history.undo(text) >= 0);
+        }
+    }
+
+    @Test
+    public void undoRedoRoundTrip() {
+        type("a");
+        type("b");
+        type("c");
+        assertEquals(3, history.size());
+
+        undoAll();
+        assertEquals("", text.toString());
+        while (history.canRedo()) {
+            assertTrue(history.redo(text) >= 0);
+        }
+        assertEquals("abc", text.toString());
+    }
+
+    @Test
+    public void coalescesWithinTimeout() {
+        type("a");
+        time -= STEP - 1;
+        type("b");
+        assertEquals(1, history.size());
+
+        history.undo(text);
+        assertEquals("", text.toString());
+    }
+
+    @Test
+    public void editDropsRedo() {
+        type("a");
+        type("b");
+        history.undo(text);
+        type("c");
+
+        assertFalse(history.canRedo());
+        undoAll();
+        assertEquals("", text.toString());
+    }
+
+    @Test
+    public void setMaxSizeAfterUndoDropsRedoFirst() {
+        type("a");
+        type("b");
+        type("c");
+        type("d");
+        type("e");
+        history.undo(text);
+        history.undo(text);
+        history.undo(text);
+        assertEquals("ab", text.toString());
+
+        history.setMaxSize(1);
+        assertFalse(history.canRedo());
+        assertEquals(-1, history.redo(text));
+        assertEquals("ab", text.toString());
+
+        history.undo(text);
+        assertEquals("a", text.toString());
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    public void trimMemoryAfterUndoDropsRedoFirst() {
+        type("a");
+        type("b");
+        type("c");
+        type("d");
+        history.undo(text);
+        history.undo(text);
+        assertEquals("ab", text.toString());
+
+        history.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertFalse(history.canRedo());
+        assertEquals("ab", text.toString());
+
+        undoAll();
+        assertEquals("", text.toString());
+    }
+
+    @Test
+    public void trimMemoryCompleteKeepsText() {
+        type("a");
+        type("b");
+        type("c");
+        history.undo(text);
+
+        history.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertFalse(history.canUndo());
+        assertFalse(history.canRedo());
+        assertEquals(0, history.getBytes());
+        assertEquals("ab", text.toString());
+
+        type("d");
+        history.undo(text);
+        assertEquals("ab", text.toString());
+        history.redo(text);
+        assertEquals("abd", text.toString());
+    }
+
+    @Test
+    public void trimMemoryKeepsTheBudgetLow() {
+        type("a");
+        type("b");
+        type("c");
+        type("d");
+        long bytes = history.getBytes();
+        history.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(2, history.size());
+
+        type("e");
+        type("f");
+        assertTrue(history.getBytes() <= bytes / 2);
+
+        history.restoreMemory();
+        type("g");
+        type("h");
+        assertEquals(4, history.size());
+    }
+
+    @Test
+    public void trimMemoryUiHiddenKeepsHistory() {
+        type("a");
+        type("b");
+        history.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(2, history.size());
+    }
+
+    @Test
+    public void maxBytesEvictsOldest() {
+        type("a");
+        long bytes = history.getBytes();
+        history.setMaxBytes(2 * bytes);
+        type("b");
+        type("c");
+        type("d");
+
+        assertEquals(2, history.size());
+        assertTrue(history.getBytes() <= 2 * bytes);
+        undoAll();
+        assertEquals("ab", text.toString());
+    }
+
+    @Test
+    public void shiftMovesSteps() {
+        type("a");
+        type("b");
+        type("c");
+        history.undo(text);
+
+        text.insert(0, "xy");
+        history.shift(2);
+        history.redo(text);
+        assertEquals("xyabc", text.toString());
+
+        // The step at the start of the text is dropped with the ones before it
+        undoAll();
+        assertEquals("xya", text.toString());
+    }
+
+    @Test
+    public void cropDropsStepsOutside() {
+        type("a");
+        type("b");
+        type("c");
+        history.crop(1, 3);
+        text.delete(0, 1);
+        assertEquals(2, history.size());
+        undoAll();
+        assertEquals("", text.toString());
+
+        type("d");
+        type("e");
+        text.append("f");
+        history.crop(0, 2);
+        text.delete(2, 3);
+        assertEquals(2, history.size());
+
+        history.crop(0, 1);
+        text.delete(1, 2);
+        assertEquals(0, history.size());
+        assertEquals("d", text.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMaxSize() {
+        history.setMaxSize(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMaxBytes() {
+        history.setMaxBytes(-1);
+    }
+}
@@ -0,0 +1,144 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link KnifeHtmlCache} writes the same HTML as {@link KnifeParser#toHtml(Spanned, int)} after every
+ * step of random typing, deleting and span changes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeHtmlCacheTest {
+    private static final String TYPED = "ab \n<中";
+    private static final int OPTIONS = KnifeParser.TO_HTML_UTF8 | KnifeParser.TO_HTML_MINIMAL;
+
+    // Never between the two chars of a surrogate pair
+    private static int offset(Spanned text, Random random) {
+        int i = random.nextInt(text.length() + 1);
+        if (i > 0 && i < text.length() && Character.isLowSurrogate(text.charAt(i))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static int lineStart(Spanned text, int i) {
+        while (i > 0 && text.charAt(i - 1) != '\n') {
+            i--;
+        }
+        return i;
+    }
+
+    private static int lineEnd(Spanned text, int i) {
+        while (i < text.length() && text.charAt(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static Object inlineSpan(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return new StyleSpan(Typeface.BOLD);
+            case 1:
+                return new StyleSpan(Typeface.ITALIC);
+            case 2:
+                return new UnderlineSpan();
+            default:
+                return new StrikethroughSpan();
+        }
+    }
+
+    private static void step(SpannableStringBuilder text, Random random) {
+        int start = offset(text, random);
+        int end = Math.max(start, offset(text, random));
+        // The formats only, not the cache and its blocks
+        Object[] spans = text.getSpans(0, text.length(), CharacterStyle.class);
+
+        switch (random.nextInt(7)) {
+            case 0:
+                text.insert(start, TYPED.substring(random.nextInt(TYPED.length())));
+                break;
+            case 1:
+                text.delete(start, Math.min(end, start + 1 + random.nextInt(5)));
+                break;
+            case 2:
+                text.replace(start, end, TYPED.substring(random.nextInt(TYPED.length())));
+                break;
+            case 3:
+                if (start < end) {
+                    text.setSpan(inlineSpan(random), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                break;
+            case 4:
+                if (spans.length > 0) {
+                    text.removeSpan(spans[random.nextInt(spans.length)]);
+                }
+                break;
+            case 5:
+                // Moved or resized in place
+                if (spans.length > 0 && start < end) {
+                    Object span = spans[random.nextInt(spans.length)];
+                    text.setSpan(span, start, end, text.getSpanFlags(span));
+                }
+                break;
+            default:
+                int lineStart = lineStart(text, start);
+                int lineEnd = lineEnd(text, start);
+                ParagraphStyle[] lineSpans = text.getSpans(lineStart, lineEnd, ParagraphStyle.class);
+                if (lineSpans.length > 0) {
+                    text.removeSpan(lineSpans[0]);
+                } else if (lineStart < lineEnd) {
+                    Object span = random.nextBoolean() ? new BulletSpan() : new QuoteSpan();
+                    text.setSpan(span, lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                break;
+        }
+    }
+
+    @Test
+    public void sameAsTheParserAfterEveryStep() {
+        for (long seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            SpannableStringBuilder text = new SpannableStringBuilder(KnifeTestDocuments.sample(seed, 300));
+            KnifeHtmlCache htmlCache = new KnifeHtmlCache();
+
+            for (int i = 0; i < 200; i++) {
+                // Mostly the same option, so the cached blocks get used
+                int option = random.nextInt(10) == 0 ? random.nextInt(OPTIONS + 1) : 0;
+                assertEquals("seed " + seed + " step " + i, KnifeParser.toHtml(text, option), htmlCache.toHtml(text, option));
+                step(text, random);
+            }
+        }
+    }
+
+    @Test
+    public void emptiedAndRefilled() {
+        SpannableStringBuilder text = new SpannableStringBuilder(KnifeTestDocuments.sample(1, 100));
+        KnifeHtmlCache htmlCache = new KnifeHtmlCache();
+        assertEquals(KnifeParser.toHtml(text, 0), htmlCache.toHtml(text));
+
+        text.clear();
+        assertEquals(KnifeParser.toHtml(text, 0), htmlCache.toHtml(text));
+
+        text.append("a\nb");
+        text.setSpan(new StyleSpan(Typeface.BOLD), 0, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertEquals(KnifeParser.toHtml(text, 0), htmlCache.toHtml(text));
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.Html;
+import android.text.Spanned;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link KnifeHtmlReader} against Html.fromHtml() with {@link KnifeTagHandler} on the notes Knife
+ * writes, which have to read back the same. Times go to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeHtmlReaderBenchmark {
+    private static final String TAG = "KnifeHtmlReaderBenchmark";
+    private static final int LENGTH = 20000;
+    private static final int ROUNDS = 20;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @SuppressWarnings("deprecation")
+    private Spanned framework(String source) {
+        return Html.fromHtml(source.replace("\n", "<br>"), null, new KnifeTagHandler(context));
+    }
+
+    private Spanned reader(String source) {
+        return new KnifeHtmlReader(context, source, null, KnifeParseLimits.DEFAULT).read();
+    }
+
+    private void compare(String name, int option) {
+        String source = "&zwj;" + KnifeParser.toHtml(KnifeTestDocuments.sample(0, LENGTH), option);
+        Spanned read = reader(source);
+        assertNotNull(read);
+        assertEquals(KnifeTestDocuments.dump(framework(source)), KnifeTestDocuments.dump(read));
+
+        long time = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            framework(source);
+        }
+        long frameworkTime = (System.nanoTime() - time) / ROUNDS;
+
+        time = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            reader(source);
+        }
+        long readerTime = (System.nanoTime() - time) / ROUNDS;
+
+        Log.i(TAG, name + ": " + source.length() + " chars, framework " + frameworkTime / 1000 + " us, reader "
+                + readerTime / 1000 + " us");
+    }
+
+    @Test
+    public void entities() {
+        compare("entities", 0);
+    }
+
+    @Test
+    public void utf8() {
+        compare("utf-8", KnifeParser.TO_HTML_UTF8);
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.Html;
+import android.text.Spanned;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link KnifeHtmlReader} against Html.fromHtml() with {@link KnifeTagHandler}, which it replaces
+ * from API 24 on: the same text and the same spans over the same ranges.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeHtmlReaderTest {
+    private static final String[] SOURCES = {
+            "a  b<br>  c",
+            "x<ul><li>a</li></ul>y",
+            "<ul><li>a</li><li>b</li></ul>",
+            "<blockquote>q<br>r</blockquote>z",
+            "<b>a<i>b</i></b>&lt;&#20013;&#128512;&nbsp; x",
+            "<b><u>a</u></b><del>b</del><s>c</s><strike>d</strike>",
+            "<mark style=\"background-color:#FFEB3B\">12</mark>34",
+            "<a href=\"https://example.com/?a=1\">l</a>\nn",
+            "<ul><li><blockquote>q</blockquote></li></ul>",
+            "<blockquote><ul><li>a</li></ul></blockquote><br><br>b",
+    };
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @SuppressWarnings("deprecation")
+    private Spanned framework(String source) {
+        return Html.fromHtml(source.replace("\n", "<br>"), null, new KnifeTagHandler(context));
+    }
+
+    // Returns whether the reader took the source at all, it leaves unknown markup to the framework
+    private boolean assertSameAsFramework(String html) {
+        String source = "&zwj;" + html;
+        Spanned read = new KnifeHtmlReader(context, source, null, KnifeParseLimits.DEFAULT).read();
+        if (read == null) {
+            return false;
+        }
+
+        assertEquals(html, KnifeTestDocuments.dump(framework(source)), KnifeTestDocuments.dump(read));
+        return true;
+    }
+
+    @Test
+    public void handWritten() {
+        for (String source : SOURCES) {
+            assertTrue(source, assertSameAsFramework(source));
+        }
+    }
+
+    @Test
+    public void knifeOutput() {
+        int options = KnifeParser.TO_HTML_UTF8 | KnifeParser.TO_HTML_MINIMAL;
+        for (long seed = 0; seed < 200; seed++) {
+            Spanned note = KnifeTestDocuments.sample(seed, 200);
+            for (int option = 0; option <= options; option++) {
+                String html = KnifeParser.toHtml(note, option);
+                assertTrue(html, assertSameAsFramework(html));
+            }
+        }
+    }
+
+    @Test
+    public void unknownMarkupIsLeftToTheFramework() {
+        String source = "&zwj;<p>a</p><img src=\"x\"><font color=\"red\">b</font>";
+        assertNull(new KnifeHtmlReader(context, source, null, KnifeParseLimits.DEFAULT).read());
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.mthli.knife;
+
+import android.text.SpannableStringBuilder;
+import android.text.style.StyleSpan;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sessions read back from a {@link KnifeJournal}, both while their write is queued and from the file.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeJournalTest {
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir(), "KnifeJournalTest.bin");
+        file.delete();
+    }
+
+    private static List<Regret> session(String inserted) {
+        SpannableStringBuilder text = new SpannableStringBuilder(inserted);
+        text.setSpan(new StyleSpan(1), 0, inserted.length(), 33);
+        List<Regret> list = new ArrayList<>();
+        list.add(new Regret(0, "", inserted, new KnifeSpanRecord[0], KnifeSpanRecord.collect(text, 0, inserted.length()), 0, inserted.length()));
+        return list;
+    }
+
+    @Test
+    public void readQueuedSessions() {
+        KnifeJournal journal = new KnifeJournal(file);
+        journal.reset();
+        for (int i = 0; i < 100; i++) {
+            journal.writeSession(i, session("step " + i));
+        }
+        journal.writeSession(50, session("rewritten"));
+
+        assertEquals("step 0", journal.readSession(0).get(0).getInserted());
+        assertEquals("rewritten", journal.readSession(50).get(0).getInserted());
+        assertEquals("step 99", journal.readSession(99).get(0).getInserted());
+        assertNull(journal.readSession(100));
+        journal.close();
+    }
+
+    @Test
+    public void readWrittenSessions() throws InterruptedException {
+        KnifeJournal journal = new KnifeJournal(file);
+        journal.reset();
+        journal.writeSession(0, session("a"));
+        journal.writeSession(1, session("b"));
+        journal.writeState(0, 2, 2);
+        journal.writeCheckpoint(2, KnifeJournal.hash("ab"));
+        journal.close();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        KnifeJournal loaded = new KnifeJournal(file);
+        loaded.load(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertTrue(loaded.matches("ab"));
+        List<Regret> session = loaded.readSession(1);
+        assertEquals(1, session.size());
+        assertEquals("b", session.get(0).getInserted());
+        assertEquals(1, session.get(0).getSpansAfter().length);
+        loaded.close();
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.mthli.knife;
+
+import android.text.SpannableStringBuilder;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link KnifeLineIndex} kept up to date from edits against the lines of the text split from scratch.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeLineIndexTest {
+    private static final String ALPHABET = "ab\n\nc d\n";
+
+    private static List<Integer> lineStarts(CharSequence text) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                starts.add(i + 1);
+            }
+        }
+        return starts;
+    }
+
+    private static void assertMatches(CharSequence text, KnifeLineIndex index) {
+        List<Integer> starts = lineStarts(text);
+        assertEquals(starts.size(), index.getLineCount());
+        for (int line = 0; line < starts.size(); line++) {
+            assertEquals((int) starts.get(line), index.getLineStart(line));
+            int end = line + 1 < starts.size() ? starts.get(line + 1) - 1 : text.length();
+            assertEquals(end, index.getLineEnd(line));
+        }
+        for (int offset = 0; offset <= text.length(); offset++) {
+            int line = index.getLineForOffset(offset);
+            assertTrue(index.getLineStart(line) <= offset);
+            assertTrue(line + 1 == index.getLineCount() || index.getLineStart(line + 1) > offset);
+        }
+    }
+
+    private static String random(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void sync() {
+        KnifeLineIndex index = new KnifeLineIndex();
+        index.sync("");
+        assertMatches("", index);
+
+        String text = "a\n\nbc\nd\n";
+        index.sync(text);
+        assertMatches(text, index);
+        assertEquals(2, index.getLineForOffset(3));
+    }
+
+    @Test
+    public void randomEdits() {
+        Random random = new Random(42);
+        SpannableStringBuilder text = new SpannableStringBuilder(random(random, 200));
+        KnifeLineIndex index = new KnifeLineIndex();
+        index.sync(text);
+
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int before = random.nextInt(Math.min(10, text.length() - start) + 1);
+            String inserted = random(random, random.nextInt(10));
+            text.replace(start, start + before, inserted);
+            index.onTextChanged(text, start, before, inserted.length());
+            assertMatches(text, index);
+        }
+    }
+
+    @Test
+    public void missedChangeResyncs() {
+        SpannableStringBuilder text = new SpannableStringBuilder("a\nb\nc");
+        KnifeLineIndex index = new KnifeLineIndex();
+        index.sync(text);
+
+        // The index never saw this one, the next change has to notice from the length
+        text.append("\nd");
+        text.insert(0, "\n");
+        index.onTextChanged(text, 0, 0, 1);
+        assertMatches(text, index);
+    }
+}
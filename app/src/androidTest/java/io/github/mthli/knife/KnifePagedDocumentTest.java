@@ -0,0 +1,311 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link KnifePagedDocument} read page by page and written back page by page, as the paged mode of
+ * {@link KnifeText} scrolls through a note.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifePagedDocumentTest {
+    private static final int PAGE_LENGTH = 30;
+    private static final int WINDOW_PAGES = 2;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private Spanned readPages(KnifePagedDocument document) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        for (int i = 0; i < document.getPageCount(); i++) {
+            KnifeChunk chunk = document.parse(context, i, text, null, KnifeParseLimits.DEFAULT);
+            int start = text.length();
+            text.append(chunk.getText());
+            chunk.join(text, start);
+        }
+        return text;
+    }
+
+    // Where typing keeps the paragraph spans at line boundaries: at the end of the first line which
+    // isn't empty, -1 if there is none
+    private static int typingPosition(CharSequence text, int length) {
+        for (int i = 1; i < length; i++) {
+            if (text.charAt(i) == '\n' && text.charAt(i - 1) != '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Scroll to the end, writing back each page dropped from the front with an 'x' typed into it,
+    // which goes into edited at the same place. Returns the HTML of the whole note then
+    private String scrollThrough(KnifePagedDocument document, SpannableStringBuilder edited, int option) {
+        SpannableStringBuilder window = new SpannableStringBuilder();
+        int pageStart = 0;
+        int pageEnd = 0;
+        int dropped = 0;
+        int firstLength = 0;
+        while (pageEnd < document.getPageCount()) {
+            KnifeChunk chunk = document.parse(context, pageEnd, window, null, KnifeParseLimits.DEFAULT);
+            int start = window.length();
+            window.append(chunk.getText());
+            chunk.join(window, start);
+            if (pageEnd == pageStart) {
+                firstLength = chunk.getText().length();
+            }
+            pageEnd++;
+
+            if (pageEnd - pageStart > WINDOW_PAGES) {
+                int at = typingPosition(window, firstLength);
+                if (at >= 0) {
+                    window.insert(at, "x");
+                    edited.insert(dropped + at, "x");
+                    firstLength++;
+                }
+
+                int newlines = document.getNewlines(context, pageStart, null, KnifeParseLimits.DEFAULT);
+                int count = document.replace(pageStart, pageStart + 1, (Spanned) window.subSequence(0, firstLength), newlines, option);
+                window.delete(0, firstLength);
+                dropped += firstLength;
+                pageStart += count;
+                pageEnd += count - 1;
+                // The pages written back are read again after the text before them
+                firstLength = pageStart < pageEnd
+                        ? document.parse(context, pageStart, edited.subSequence(0, dropped), null, KnifeParseLimits.DEFAULT).getText().length()
+                        : 0;
+            }
+        }
+
+        int newlines = document.getNewlines(context, pageStart, null, KnifeParseLimits.DEFAULT);
+        return document.toHtml(pageStart, pageEnd, KnifeParser.toHtml(window, option), newlines);
+    }
+
+    @Test
+    public void pagesReadAsTheWholeNote() {
+        for (long seed = 0; seed < 100; seed++) {
+            String source = KnifeParser.toHtml(KnifeTestDocuments.sample(seed, 400), (int) seed % 4);
+            String whole = KnifeTestDocuments.dump(KnifeParser.fromHtml(context, source, null, KnifeParseLimits.DEFAULT));
+            assertEquals(source, whole, KnifeTestDocuments.dump(readPages(new KnifePagedDocument(source, PAGE_LENGTH))));
+        }
+    }
+
+    // Returns whether the whole text written at once reads as the text again, a line break after a
+    // list or quote can be lost then. Written page by page it has to read as the text at least then
+    private boolean assertWrittenBack(String source, int option) {
+        KnifePagedDocument document = new KnifePagedDocument(source, PAGE_LENGTH);
+        SpannableStringBuilder edited = new SpannableStringBuilder(readPages(document));
+        String html = scrollThrough(document, edited, option);
+
+        String expected = KnifeTestDocuments.dump(edited);
+        String whole = KnifeParser.toHtml((Spanned) edited.subSequence(1, edited.length()), option);
+        if (!expected.equals(KnifeTestDocuments.dump(KnifeParser.fromHtml(context, whole, null, KnifeParseLimits.DEFAULT)))) {
+            return false;
+        }
+
+        assertEquals(source, expected, KnifeTestDocuments.dump(KnifeParser.fromHtml(context, html, null, KnifeParseLimits.DEFAULT)));
+        return true;
+    }
+
+    @Test
+    public void pagesWrittenBackAreTheNote() {
+        int written = 0;
+        for (long seed = 0; seed < 100; seed++) {
+            int option = (int) seed % 4;
+            if (assertWrittenBack(KnifeParser.toHtml(KnifeTestDocuments.sample(seed, 400), option), option)) {
+                written++;
+            }
+        }
+        assertTrue(written > 50);
+    }
+
+    @Test
+    public void giantQuoteIsCutIntoPages() {
+        String source = "<blockquote>" + repeat("quoted line<br>", 100) + "</blockquote><ul>"
+                + repeat("<li>item</li>", 100) + "</ul>";
+        KnifePagedDocument document = new KnifePagedDocument(source, PAGE_LENGTH);
+        assertTrue(document.getPageCount() > 10);
+
+        String whole = KnifeTestDocuments.dump(KnifeParser.fromHtml(context, source, null, KnifeParseLimits.DEFAULT));
+        assertEquals(whole, KnifeTestDocuments.dump(readPages(document)));
+
+        assertTrue(assertWrittenBack(source, KnifeParser.TO_HTML_MINIMAL));
+    }
+
+    private static final KnifePagedDocument.PageFormat BOLD = new KnifePagedDocument.PageFormat() {
+        @Override
+        public void format(Editable page) {
+            if (page.length() > 0) {
+                page.setSpan(new StyleSpan(Typeface.BOLD), 0, page.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    };
+
+    private static final KnifePagedDocument.PageFormat NO_STRIKETHROUGH = new KnifePagedDocument.PageFormat() {
+        @Override
+        public void format(Editable page) {
+            for (StrikethroughSpan span : page.getSpans(0, page.length(), StrikethroughSpan.class)) {
+                page.removeSpan(span);
+            }
+        }
+    };
+
+    private static final KnifePagedDocument.PageFormat NO_QUOTE = new KnifePagedDocument.PageFormat() {
+        @Override
+        public void format(Editable page) {
+            for (QuoteSpan span : page.getSpans(0, page.length(), QuoteSpan.class)) {
+                page.removeSpan(span);
+            }
+        }
+    };
+
+    private static final KnifePagedDocument.PageFormat BULLET = new KnifePagedDocument.PageFormat() {
+        @Override
+        public void format(Editable page) {
+            for (BulletSpan span : page.getSpans(0, page.length(), BulletSpan.class)) {
+                page.removeSpan(span);
+            }
+
+            int lineStart = 0;
+            for (int i = 0; i <= page.length(); i++) {
+                if (i == page.length() || page.charAt(i) == '\n') {
+                    if (i > lineStart) {
+                        page.setSpan(new BulletSpan(), lineStart, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+        }
+    };
+
+    // Format the pages around a window of pages, held as text and formatted the same way, as after
+    // select-all. Returns the note read back
+    private Spanned formatAround(String source, KnifePagedDocument.PageFormat format, int option) {
+        KnifePagedDocument document = new KnifePagedDocument(source, PAGE_LENGTH);
+        int pageStart = document.getPageCount() / 3;
+        int pageEnd = Math.min(document.getPageCount(), pageStart + WINDOW_PAGES);
+
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        int windowStart = 0;
+        for (int i = 0; i < pageEnd; i++) {
+            if (i == pageStart) {
+                windowStart = text.length();
+            }
+            KnifeChunk chunk = document.parse(context, i, text, null, KnifeParseLimits.DEFAULT);
+            int start = text.length();
+            text.append(chunk.getText());
+            chunk.join(text, start);
+        }
+        SpannableStringBuilder window = new SpannableStringBuilder(text, windowStart, text.length());
+        format.format(window);
+
+        int count = document.format(context, 0, pageStart, format, null, KnifeParseLimits.DEFAULT, option);
+        pageEnd += count - pageStart;
+        pageStart = count;
+        document.format(context, pageEnd, document.getPageCount(), format, null, KnifeParseLimits.DEFAULT, option);
+
+        int newlines = document.getNewlines(context, pageStart, null, KnifeParseLimits.DEFAULT);
+        String html = document.toHtml(pageStart, pageEnd, KnifeParser.toHtml(window, option), newlines);
+        return KnifeParser.fromHtml(context, html, null, KnifeParseLimits.DEFAULT);
+    }
+
+    private static boolean isBold(Spanned text, int offset) {
+        for (StyleSpan span : text.getSpans(offset, offset + 1, StyleSpan.class)) {
+            if (span.getStyle() == Typeface.BOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the whole text written at once reads as the text again, see assertWrittenBack()
+    private boolean isWrittenExactly(Spanned text, int option) {
+        String html = KnifeParser.toHtml((Spanned) text.subSequence(1, text.length()), option);
+        Spanned read = KnifeParser.fromHtml(context, html, null, KnifeParseLimits.DEFAULT);
+        return KnifeTestDocuments.dump(text).equals(KnifeTestDocuments.dump(read));
+    }
+
+    @Test
+    public void formatReachesEveryPage() {
+        int written = 0;
+        for (long seed = 0; seed < 100; seed++) {
+            int option = (int) seed % 4;
+            String source = KnifeParser.toHtml(KnifeTestDocuments.sample(seed, 400), option);
+            Spanned note = KnifeParser.fromHtml(context, source, null, KnifeParseLimits.DEFAULT);
+            if (!isWrittenExactly(note, option)) {
+                continue;
+            }
+            written++;
+
+            // But the ZWJ the note starts with, which isn't written
+            Spanned bold = formatAround(source, BOLD, option);
+            assertEquals(source, note.toString(), bold.toString());
+            for (int i = 1; i < bold.length(); i++) {
+                assertTrue(source + " at " + i, bold.charAt(i) == '\n' || isBold(bold, i));
+            }
+
+            Spanned plain = formatAround(source, NO_STRIKETHROUGH, option);
+            assertEquals(source, note.toString(), plain.toString());
+            assertEquals(source, 0, plain.getSpans(0, plain.length(), StrikethroughSpan.class).length);
+        }
+        assertTrue(written > 50);
+    }
+
+    @Test
+    public void paragraphFormatReachesEveryPage() {
+        int written = 0;
+        for (long seed = 0; seed < 100; seed++) {
+            int option = (int) seed % 4;
+            String source = KnifeParser.toHtml(KnifeTestDocuments.sample(seed, 400), option);
+            SpannableStringBuilder note = new SpannableStringBuilder(KnifeParser.fromHtml(context, source, null, KnifeParseLimits.DEFAULT));
+
+            // Lists and quotes taken away leave the same note as formatting it all at once
+            SpannableStringBuilder unquoted = new SpannableStringBuilder(note);
+            NO_QUOTE.format(unquoted);
+            if (isWrittenExactly(unquoted, option)) {
+                written++;
+                assertEquals(source, KnifeTestDocuments.dump(unquoted), KnifeTestDocuments.dump(formatAround(source, NO_QUOTE, option)));
+            }
+
+            // Lists added don't keep the line breaks around them even then, see isWrittenExactly()
+            SpannableStringBuilder listed = new SpannableStringBuilder(note);
+            BULLET.format(listed);
+            String html = KnifeParser.toHtml((Spanned) listed.subSequence(1, listed.length()), option);
+            String expected = KnifeParser.fromHtml(context, html, null, KnifeParseLimits.DEFAULT).toString();
+            Spanned bullets = formatAround(source, BULLET, option);
+            assertEquals(source, expected.replace("\n", ""), bullets.toString().replace("\n", ""));
+            for (int i = 1; i < bullets.length(); i++) {
+                assertTrue(source + " at " + i, bullets.charAt(i) == '\n'
+                        || bullets.getSpans(i, i + 1, BulletSpan.class).length > 0);
+            }
+        }
+        assertTrue(written > 50);
+    }
+}
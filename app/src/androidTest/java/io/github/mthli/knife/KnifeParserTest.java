@@ -0,0 +1,136 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link KnifeParser#fromHtml(Context, String, KnifeSpanFactory, KnifeParseLimits)} within its limits,
+ * and a note cut by {@link KnifeParser#nextChunk(String, int, int, List, int)} and read chunk by chunk.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeParserTest {
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    // As fromHtmlProgressive() appends the chunks
+    private Spanned readChunks(String source, int minLength, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        KnifeHtmlReader.Carry carry = new KnifeHtmlReader.Carry();
+        List<String> tags = new ArrayList<>();
+        int next;
+        for (int i = 0; i < source.length(); i = next) {
+            List<String> startTags = new ArrayList<>(tags);
+            next = KnifeParser.nextChunk(source, i, minLength, tags, KnifeParser.CUT_ANYWHERE);
+            KnifeChunk chunk = KnifeParser.fromHtmlChunk(context, source.substring(i, next), startTags, tags, carry, factory, limits);
+            int start = text.length();
+            text.append(chunk.getText());
+            chunk.join(text, start);
+        }
+        return text;
+    }
+
+    @Test
+    public void tooDeepForTheFrameworkIsText() {
+        // Markup the reader leaves to the framework parser, nested past maxDepth
+        String source = repeat("<div>", 100) + "deep" + repeat("</div>", 100);
+        Spanned spanned = KnifeParser.fromHtml(context, source, null, KnifeParseLimits.DEFAULT);
+        assertTrue(spanned.toString().contains("deep"));
+        assertEquals(0, spanned.getSpans(0, spanned.length(), Object.class).length);
+    }
+
+    @Test
+    public void tooManyTagsForTheFrameworkIsText() {
+        String source = repeat("<font color=\"red\">a</font>", 100);
+        Spanned spanned = KnifeParser.fromHtml(context, source, null, new KnifeParseLimits(32, 10, 1024 * 1024));
+        assertEquals("\u200D" + repeat("a", 100), spanned.toString());
+        assertEquals(0, spanned.getSpans(0, spanned.length(), Object.class).length);
+    }
+
+    @Test
+    public void tooLongIsText() {
+        String source = repeat("<b>a</b>", 100);
+        Spanned spanned = KnifeParser.fromHtml(context, source, null, new KnifeParseLimits(32, 1000, 100));
+        assertEquals("\u200D" + repeat("a", 100), spanned.toString());
+        assertEquals(0, spanned.getSpans(0, spanned.length(), Object.class).length);
+    }
+
+    @Test
+    public void spansPastTheLimitKeepTheirText() {
+        String source = repeat("<b>a</b>", 100);
+        Spanned spanned = KnifeParser.fromHtml(context, source, null, new KnifeParseLimits(32, 10, 1024 * 1024));
+        assertEquals("\u200D" + repeat("a", 100), spanned.toString());
+        // The first ones in the text are kept
+        Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+        assertEquals(10, spans.length);
+        for (Object span : spans) {
+            assertTrue(spanned.getSpanEnd(span) <= 11);
+        }
+    }
+
+    @Test
+    public void chunksReadAsTheWholeNote() {
+        // Cut within elements only where the reader carries them over
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        KnifeSpanFactory[] factories = {null, new KnifeSpanFactory(0xFF000000, 4, 8, 0xFF0000FF, 2, 8, 0xFF00FF00, true)};
+        for (long seed = 0; seed < 100; seed++) {
+            Spanned note = KnifeTestDocuments.sample(seed, 300);
+            String source = "&zwj;" + KnifeParser.toHtml(note, (int) seed % 4);
+            for (KnifeSpanFactory factory : factories) {
+                String whole = KnifeTestDocuments.dump(KnifeParser.fromHtml(context, source, factory, KnifeParseLimits.DEFAULT));
+                for (int minLength : new int[]{1, 5, 40}) {
+                    Spanned chunks = readChunks(source, minLength, factory, KnifeParseLimits.DEFAULT);
+                    assertEquals(source, whole, KnifeTestDocuments.dump(chunks));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void chunksAreCutWithinElements() {
+        String source = "&zwj;<blockquote><b>" + repeat("a<br>", 100) + "</b></blockquote>";
+        List<String> tags = new ArrayList<>();
+        int next = KnifeParser.nextChunk(source, 0, 10, tags, KnifeParser.CUT_ANYWHERE);
+        assertTrue(next < 30);
+        assertEquals(2, tags.size());
+
+        // A paragraph without any line break is cut as well
+        source = "&zwj;" + repeat("word ", 100);
+        assertTrue(KnifeParser.nextChunk(source, 0, 10, new ArrayList<String>(), KnifeParser.CUT_ANYWHERE) < 30);
+    }
+
+    @Test
+    public void spanLimitCountsAcrossChunks() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        String source = "&zwj;" + repeat("<b>a</b>", 100);
+        Spanned spanned = readChunks(source, 8, null, new KnifeParseLimits(32, 10, 1024 * 1024));
+        assertEquals("\u200D" + repeat("a", 100), spanned.toString());
+        assertEquals(10, spanned.getSpans(0, spanned.length(), Object.class).length);
+    }
+}
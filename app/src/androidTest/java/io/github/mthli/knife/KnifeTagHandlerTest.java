@@ -0,0 +1,88 @@
+package io.github.mthli.knife;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * The background color of a &lt;mark&gt; style read by {@link KnifeTagHandler#getMarkBackgroundColor(String)},
+ * malformed colors falling back to the default, and the same answers once the styles are cached.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeTagHandlerTest {
+    private static int color(String style) {
+        return KnifeTagHandler.getMarkBackgroundColor(style);
+    }
+
+    private static void assertDefault(String style) {
+        assertEquals(style, Constant.DEFAULT_MARK_BACKGROUND_COLOR, color(style));
+    }
+
+    @Test
+    public void hexColors() {
+        assertEquals(0xFFFF8000, color("background-color:#ff8000"));
+        assertEquals(0xFFFF8000, color("background-color:#FF8000"));
+        assertEquals(0x80FF8000, color("background-color:#80ff8000"));
+        assertEquals(0xFFAABBCC, color("background-color:#abc"));
+    }
+
+    @Test
+    public void rgbColors() {
+        assertEquals(0xFF0A141E, color("background-color:rgb(10,20,30)"));
+        assertEquals(0xFF0A141E, color("background-color:RGB( 10 , 20 , 30 )"));
+        assertEquals(0xFFFFFFFF, color("background-color:rgb(255,255,255)"));
+    }
+
+    @Test
+    public void decimalColors() {
+        assertEquals(0xFFFF8000, color("background-color:" + 0xFFFF8000));
+        assertEquals(0x00000010, color("background-color:16"));
+    }
+
+    @Test
+    public void whitespaceAndOtherProperties() {
+        assertEquals(0xFFFF8000, color("  background-color :  #ff8000  "));
+        assertEquals(0xFFFF8000, color("color:#000000; Background-Color:#ff8000;"));
+        assertEquals(0xFFFF8000, color("color:#000000;background-color:#ff8000;font-weight:bold"));
+    }
+
+    @Test
+    public void malformedColorsAreTheDefault() {
+        assertDefault(null);
+        assertDefault("");
+        assertDefault("color:#ff8000");
+        assertDefault("background-color:");
+        assertDefault("background-color:#");
+        assertDefault("background-color:#ab");
+        assertDefault("background-color:#abcd");
+        assertDefault("background-color:#ff80001");
+        assertDefault("background-color:#ff80ggg");
+        assertDefault("background-color:#ff 800");
+        assertDefault("background-color:rgb(300,0,0)");
+        assertDefault("background-color:rgb(-1,0,0)");
+        assertDefault("background-color:rgb(1,2,3");
+        assertDefault("background-color:rgb(1,2)");
+        assertDefault("background-color:rgb(1,2,3,4)");
+        assertDefault("background-color:rgb(a,b,c)");
+        assertDefault("background-color:yellow");
+        assertDefault("background-color:99999999999");
+    }
+
+    @Test
+    public void cachedColorsStayTheSame() {
+        String style = "background-color:#123456";
+        assertEquals(0xFF123456, color(style));
+        assertEquals(0xFF123456, color(style));
+
+        // More styles than the cache holds, the evicted ones are parsed again
+        for (int i = 0; i < 200; i++) {
+            assertEquals(0xFF000000 | i, color("background-color:rgb(0,0," + i % 256 + ");x:" + i));
+        }
+        assertEquals(0xFF123456, color(style));
+        assertDefault("background-color:rgb(300,0,0)");
+        assertDefault("background-color:rgb(300,0,0)");
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random notes with every format Knife writes, and a comparable dump of parsed text.
+ */
+class KnifeTestDocuments {
+    private static final String ALPHABET = "\n <&中😀abcde";
+
+    // Lines of words with inline spans anywhere and bullets and quotes on whole lines
+    static Spanned sample(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            int i = random.nextInt(ALPHABET.length());
+            if (Character.isHighSurrogate(ALPHABET.charAt(i))) {
+                builder.append(ALPHABET, i, i + 2);
+            } else if (!Character.isLowSurrogate(ALPHABET.charAt(i))) {
+                builder.append(ALPHABET.charAt(i));
+            }
+        }
+
+        SpannableStringBuilder text = new SpannableStringBuilder(builder);
+        for (int i = 0; i < length / 8; i++) {
+            int start = random.nextInt(text.length());
+            int end = Math.min(text.length(), start + 1 + random.nextInt(20));
+            if (Character.isLowSurrogate(text.charAt(start)) || end < text.length() && Character.isLowSurrogate(text.charAt(end))) {
+                continue;
+            }
+
+            Object span;
+            switch (random.nextInt(7)) {
+                case 0:
+                    span = new StyleSpan(Typeface.BOLD);
+                    break;
+                case 1:
+                    span = new StyleSpan(Typeface.ITALIC);
+                    break;
+                case 2:
+                    span = new UnderlineSpan();
+                    break;
+                case 3:
+                    span = new StrikethroughSpan();
+                    break;
+                case 4:
+                    span = new BackgroundColorSpan(0xFFFFEB3B);
+                    break;
+                default:
+                    // The editor never lets links overlap
+                    if (text.getSpans(start, end, URLSpan.class).length > 0) {
+                        continue;
+                    }
+                    span = new URLSpan("https://example.com/" + random.nextInt(3));
+                    break;
+            }
+            text.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        int lineStart = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && text.charAt(i) != '\n') {
+                continue;
+            }
+
+            if (i > lineStart) {
+                int kind = random.nextInt(4);
+                if (kind == 1 || kind == 3) {
+                    text.setSpan(new BulletSpan(), lineStart, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                if (kind == 2 || kind == 3) {
+                    text.setSpan(new QuoteSpan(), lineStart, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+            lineStart = i + 1;
+        }
+        return text;
+    }
+
+    // The text, then one line per span sorted by range, with the attributes written to HTML
+    static String dump(Spanned text) {
+        List<String> spans = new ArrayList<>();
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            String name = span.getClass().getSimpleName();
+            if (span instanceof StyleSpan) {
+                name += " " + ((StyleSpan) span).getStyle();
+            } else if (span instanceof BackgroundColorSpan) {
+                name += " " + Integer.toHexString(((BackgroundColorSpan) span).getBackgroundColor());
+            } else if (span instanceof URLSpan) {
+                name += " " + ((URLSpan) span).getURL();
+            }
+            spans.add(String.format("%08d %08d %s %x", text.getSpanStart(span), text.getSpanEnd(span), name,
+                    text.getSpanFlags(span) & ~Spanned.SPAN_PRIORITY));
+        }
+        Collections.sort(spans);
+
+        StringBuilder builder = new StringBuilder(text.toString().replace("\n", "|"));
+        for (String span : spans) {
+            builder.append('\n').append(span);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Formats switched on or off at the caret and typed into, and fromHtmlAsync() loads which are
+ * outdated by the time they are done.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeTextTest {
+    private KnifeText knife;
+
+    @Before
+    public void setUp() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife = new KnifeText(InstrumentationRegistry.getInstrumentation().getTargetContext());
+            }
+        });
+    }
+
+    private static boolean isBold(Spanned text, int start, int end) {
+        for (StyleSpan span : text.getSpans(start, end, StyleSpan.class)) {
+            if (span.getStyle() == Typeface.BOLD && text.getSpanStart(span) <= start && text.getSpanEnd(span) >= end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    // Load in another editor and wait for it. Loads run one after another on the same thread, and
+    // are set in order on the main thread, so the ones started before are done as well
+    private void awaitLoads() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                KnifeText other = new KnifeText(knife.getContext());
+                other.fromHtmlAsync("x", new KnifeText.OnHtmlLoadedListener() {
+                    @Override
+                    public void onHtmlLoaded(KnifeText knifeText) {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    @Test
+    public void typingAfterCaretFormatOn() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife.setText("ab");
+                knife.setSelection(2);
+                knife.bold(true);
+                knife.getText().insert(2, "cd");
+                assertEquals("abcd", knife.getText().toString());
+                assertTrue(isBold(knife.getText(), 2, 4));
+                assertFalse(isBold(knife.getText(), 0, 2));
+
+                // Typing on keeps growing the same span
+                knife.getText().insert(4, "e");
+                assertTrue(isBold(knife.getText(), 2, 5));
+            }
+        });
+    }
+
+    @Test
+    public void typingAfterCaretFormatOff() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife.setText("abcd");
+                knife.getText().setSpan(new StyleSpan(Typeface.BOLD), 0, 4, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                knife.setSelection(2);
+                knife.bold(false);
+                knife.getText().insert(2, "x");
+                assertEquals("abxcd", knife.getText().toString());
+                assertFalse(isBold(knife.getText(), 2, 3));
+                assertTrue(isBold(knife.getText(), 0, 2));
+                assertTrue(isBold(knife.getText(), 3, 5));
+            }
+        });
+    }
+
+    @Test
+    public void caretFormatEndsWhenTheCaretMoves() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife.setText("abcd");
+                knife.setSelection(2);
+                knife.bold(true);
+                knife.setSelection(4);
+                knife.getText().insert(4, "e");
+                assertFalse(isBold(knife.getText(), 4, 5));
+            }
+        });
+    }
+
+    @Test
+    public void staleLoadDoesNotReplaceNewerText() throws InterruptedException {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife.fromHtmlAsync("<b>old</b>");
+                knife.fromHtml("new");
+            }
+        });
+        awaitLoads();
+        assertTrue(knife.getText().toString().contains("new"));
+        assertFalse(knife.getText().toString().contains("old"));
+    }
+
+    @Test
+    public void laterLoadWins() throws InterruptedException {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife.fromHtmlAsync("first");
+                knife.fromHtmlAsync("second");
+            }
+        });
+        awaitLoads();
+        assertTrue(knife.getText().toString().contains("second"));
+        assertFalse(knife.getText().toString().contains("first"));
+    }
+
+    @Test
+    public void cancelledLoadIsDropped() throws InterruptedException {
+        final boolean[] loaded = {false};
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                knife.fromHtmlAsync("loaded", new KnifeText.OnHtmlLoadedListener() {
+                    @Override
+                    public void onHtmlLoaded(KnifeText knifeText) {
+                        loaded[0] = true;
+                    }
+                });
+                knife.cancelFromHtml();
+                knife.setText("typed");
+            }
+        });
+        awaitLoads();
+        assertEquals("typed", knife.getText().toString());
+        assertFalse(loaded[0]);
+    }
+}
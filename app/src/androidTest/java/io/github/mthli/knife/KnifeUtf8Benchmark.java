@@ -0,0 +1,83 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Size and speed of toHtml() with {@link KnifeParser#TO_HTML_UTF8} against the &#NNNN; entities,
+ * for CJK and emoji notes. Sizes and times go to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KnifeUtf8Benchmark {
+    private static final String TAG = "KnifeUtf8Benchmark";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LENGTH = 20000;
+    private static final int ROUNDS = 20;
+
+    private static final String CJK = "中文笔记的内容，包括标点符号。日本語のテキスト한국어 텍스트";
+    private static final String EMOJI = "😀🎉👍 text ❤️👨‍💻 ";
+
+    private static Spanned note(String sample) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        while (text.length() < LENGTH) {
+            int start = text.length();
+            text.append(sample);
+            if (start % 3 == 0) {
+                text.setSpan(new StyleSpan(Typeface.BOLD), start, start + 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            text.append('\n');
+        }
+        return text;
+    }
+
+    private static long time(Spanned note, int option) {
+        KnifeParser.toHtml(note, option);
+
+        long time = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            KnifeParser.toHtml(note, option);
+        }
+        return (System.nanoTime() - time) / ROUNDS;
+    }
+
+    private static void compare(String name, Spanned note) {
+        String entities = KnifeParser.toHtml(note, 0);
+        String utf8 = KnifeParser.toHtml(note, KnifeParser.TO_HTML_UTF8);
+        int entitiesSize = entities.getBytes(UTF_8).length;
+        int utf8Size = utf8.getBytes(UTF_8).length;
+
+        // Both have to read back as the same note
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        assertEquals(KnifeParser.fromHtml(context, entities).toString(), KnifeParser.fromHtml(context, utf8).toString());
+
+        long entitiesTime = time(note, 0);
+        long utf8Time = time(note, KnifeParser.TO_HTML_UTF8);
+        Log.i(TAG, name + ": entities " + entitiesSize + " bytes in " + entitiesTime / 1000 + " us, utf-8 "
+                + utf8Size + " bytes in " + utf8Time / 1000 + " us");
+        assertTrue(utf8Size < entitiesSize);
+    }
+
+    @Test
+    public void cjk() {
+        compare("cjk", note(CJK));
+    }
+
+    @Test
+    public void emoji() {
+        compare("emoji", note(EMOJI));
+    }
+}
@@ -55,6 +55,18 @@ public class KnifeBulletSpan extends BulletSpan {
         dest.writeInt(bulletGapWidth);
     }
 
+    public int getBulletColor() {
+        return bulletColor;
+    }
+
+    public int getBulletRadius() {
+        return bulletRadius;
+    }
+
+    public int getBulletGapWidth() {
+        return bulletGapWidth;
+    }
+
     @Override
     public int getLeadingMargin(boolean first) {
         return 2 * bulletRadius + bulletGapWidth;
@@ -0,0 +1,105 @@
+package io.github.mthli.knife;
+
+import android.text.Spannable;
+import android.text.Spanned;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Text of a chunk of HTML read after the chunks before it, see
+ * {@link KnifeParser#fromHtmlChunk(android.content.Context, String, List, List, KnifeHtmlReader.Carry, KnifeSpanFactory, KnifeParseLimits)}.
+ * An element open across a cut has a span in the text of each chunk, {@link #join(Spannable, int)}
+ * makes them one span again once the text follows the text of the chunk before.
+ */
+class KnifeChunk {
+    private final Spanned text;
+    private final List<Continuation> continuations;
+
+    KnifeChunk(Spanned text) {
+        this(text, Collections.<Continuation>emptyList());
+    }
+
+    KnifeChunk(Spanned text, List<Continuation> continuations) {
+        this.text = text;
+        this.continuations = continuations;
+    }
+
+    Spanned getText() {
+        return text;
+    }
+
+    // The text of the chunk starts at start in text. The span of the same format ending there takes
+    // the end the element has, which is before start when its part in this chunk is only the blank
+    // line a paragraph span leaves out
+    void join(Spannable text, int start) {
+        List<Object> joined = new ArrayList<>();
+        for (Continuation continuation : continuations) {
+            Object previous = find(text, start, continuation.span, false, joined);
+            if (previous == null) {
+                continue;
+            }
+
+            int end;
+            if (continuation.end > 0) {
+                Object next = find(text, start, continuation.span, true, joined);
+                if (next == null) {
+                    // Edited meanwhile
+                    continue;
+                }
+                end = text.getSpanEnd(next);
+                text.removeSpan(next);
+            } else {
+                end = start + continuation.end;
+            }
+
+            joined.add(previous);
+            int previousStart = text.getSpanStart(previous);
+            if (end > previousStart) {
+                text.setSpan(previous, previousStart, end, continuation.flags);
+            } else {
+                text.removeSpan(previous);
+            }
+        }
+    }
+
+    // The outermost span of the format of span ending at start, or with starting, starting there.
+    // Once the chunk is parsed again, e.g. for a page put back before it, the span of the element
+    // in the text can be another object than span
+    private static Object find(Spanned text, int start, Object span, boolean starting, List<Object> joined) {
+        if (starting && text.getSpanStart(span) == start) {
+            return span;
+        }
+
+        String key = KnifeSpanRecord.keyOf(span);
+        Object found = null;
+        for (Object other : text.getSpans(start, start, span.getClass())) {
+            int spanStart = text.getSpanStart(other);
+            int spanEnd = text.getSpanEnd(other);
+            boolean at = starting ? spanStart == start && spanEnd > start : spanEnd == start && spanStart < start;
+            if (!at || joined.contains(other) || !KnifeSpanRecord.keyOf(other).equals(key)) {
+                continue;
+            }
+
+            if (found == null || (starting ? spanEnd > text.getSpanEnd(found) : spanStart < text.getSpanStart(found))) {
+                found = other;
+            }
+        }
+        return found;
+    }
+
+    // A span of an element going on from the chunk before: its end relative to the start of the
+    // chunk, and the flags of the whole span
+    static class Continuation {
+        private final Object span;
+        private final int end;
+        private final int flags;
+
+        Continuation(Object span, int end, int flags) {
+            this.span = span;
+            this.end = end;
+            this.flags = flags;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.mthli.knife;
+
+import android.text.Spannable;
+import android.text.Spanned;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings an Editable to a target text by changing only what differs, so the layout and the spans
+ * which stay the same are kept, instead of replacing the whole content through setText().
+ */
+public class KnifeDiff {
+
+    // Length of the common prefix of a and b
+    public static int prefix(CharSequence a, CharSequence b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // Length of the common suffix of a and b, not overlapping a common prefix of prefix chars
+    public static int suffix(CharSequence a, CharSequence b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // Make the format spans touching [start, end] match records, a span equal to its record
+    // in type, attributes, range and flags is left alone
+    public static void patchSpans(Spannable text, int start, int end, KnifeSpanRecord[] records) {
+        Object[] spans = text.getSpans(Math.max(0, start - 1), Math.min(text.length(), end + 1), Object.class);
+        Map<String, LinkedList<Object>> map = new HashMap<>();
+        for (Object span : spans) {
+            if (!KnifeSpanRecord.isRecordable(text, span)) {
+                continue;
+            }
+
+            String key = key(span, text.getSpanStart(span), text.getSpanEnd(span), text.getSpanFlags(span));
+            LinkedList<Object> list = map.get(key);
+            if (list == null) {
+                list = new LinkedList<>();
+                map.put(key, list);
+            }
+            list.add(span);
+        }
+
+        List<KnifeSpanRecord> missing = new ArrayList<>();
+        for (KnifeSpanRecord record : records) {
+            LinkedList<Object> list = map.get(key(record.getSpan(), record.getStart(), record.getEnd(), record.getFlags()));
+            if (list == null || list.isEmpty()) {
+                missing.add(record);
+            } else {
+                list.removeFirst();
+            }
+        }
+
+        for (LinkedList<Object> list : map.values()) {
+            for (Object span : list) {
+                text.removeSpan(span);
+            }
+        }
+
+        KnifeSpanRecord.restoreAll(text, missing.toArray(new KnifeSpanRecord[missing.size()]));
+    }
+
+    // Range [start, end] covering the format spans of text without an equal one in target and the
+    // ones of target without an equal one in text, null if there are none. Both have the same chars
+    public static int[] spanDifference(Spanned text, Spanned target) {
+        Map<String, LinkedList<KnifeSpanRecord>> map = new HashMap<>();
+        for (KnifeSpanRecord record : KnifeSpanRecord.collect(text, 0, text.length())) {
+            String key = key(record.getSpan(), record.getStart(), record.getEnd(), record.getFlags());
+            LinkedList<KnifeSpanRecord> list = map.get(key);
+            if (list == null) {
+                list = new LinkedList<>();
+                map.put(key, list);
+            }
+            list.add(record);
+        }
+
+        int[] range = null;
+        for (KnifeSpanRecord record : KnifeSpanRecord.collect(target, 0, target.length())) {
+            LinkedList<KnifeSpanRecord> list = map.get(key(record.getSpan(), record.getStart(), record.getEnd(), record.getFlags()));
+            if (list == null || list.isEmpty()) {
+                range = include(range, record);
+            } else {
+                list.removeFirst();
+            }
+        }
+
+        for (LinkedList<KnifeSpanRecord> list : map.values()) {
+            for (KnifeSpanRecord record : list) {
+                range = include(range, record);
+            }
+        }
+        return range;
+    }
+
+    private static int[] include(int[] range, KnifeSpanRecord record) {
+        if (range == null) {
+            return new int[]{record.getStart(), record.getEnd()};
+        }
+
+        range[0] = Math.min(range[0], record.getStart());
+        range[1] = Math.max(range[1], record.getEnd());
+        return range;
+    }
+
+    private static String key(Object span, int start, int end, int flags) {
+        return KnifeSpanRecord.keyOf(span) + ':' + start + ':' + end + ':' + (flags & ~Spanned.SPAN_PRIORITY);
+    }
+}
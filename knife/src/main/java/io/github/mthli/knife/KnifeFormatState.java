@@ -0,0 +1,32 @@
+package io.github.mthli.knife;
+
+/**
+ * Which of the {@code KnifeText.FORMAT_*} formats are active for a selection, computed at once.
+ */
+public class KnifeFormatState {
+    private final int formats;
+
+    // Bit (1 << format) set for every active format
+    public KnifeFormatState(int formats) {
+        this.formats = formats;
+    }
+
+    public boolean contains(int format) {
+        return format > 0 && format < 32 && (formats & (1 << format)) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof KnifeFormatState && ((KnifeFormatState) o).formats == formats;
+    }
+
+    @Override
+    public int hashCode() {
+        return formats;
+    }
+
+    @Override
+    public String toString() {
+        return "KnifeFormatState{" + Integer.toBinaryString(formats) + "}";
+    }
+}
@@ -0,0 +1,547 @@
+package io.github.mthli.knife;
+
+import android.content.ComponentCallbacks2;
+import android.text.Editable;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Undo/redo history of a {@link KnifeText}. Consecutive typing or deleting is coalesced into one
+ * session, which undo/redo treat as a single step. The history is bounded both by the number of
+ * sessions and, optionally, by an estimated size in bytes; the oldest sessions are evicted first.
+ * <p>
+ * With a {@link KnifeJournal} attached every session is also written to disk, only a window of
+ * sessions around the cursor stays in memory and the rest is paged back in when undo/redo reach it.
+ */
+public class KnifeHistory {
+    public static final long DEFAULT_SESSION_TIMEOUT = 1000L;
+    public static final int DEFAULT_MEMORY_SIZE = 20;
+
+    // Window of sessions [base, base + sessionList.size()) kept in memory
+    private final LinkedList<Session> sessionList = new LinkedList<>();
+    private int first = 0;
+    private int base = 0;
+    private int end = 0;
+    private int cursor = 0;
+    private int maxSize;
+    private long maxBytes;
+    private long bytes = 0;
+    // Budget lowered by onTrimMemory(), -1 if it isn't
+    private long trimmedBytes = -1;
+    private long sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+    private boolean sessionClosed = true;
+    private KnifeJournal journal;
+    private int memorySize = DEFAULT_MEMORY_SIZE;
+
+    public KnifeHistory(int maxSize, long maxBytes) {
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must >= 0");
+        }
+
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // 0 means the history is only bounded by maxSize
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must >= 0");
+        }
+
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setSessionTimeout(long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    // Sessions kept in memory while a journal is attached
+    public void setMemorySize(int memorySize) {
+        this.memorySize = Math.max(1, memorySize);
+        trim();
+    }
+
+    public int size() {
+        return end - first;
+    }
+
+    public KnifeJournal getJournal() {
+        return journal;
+    }
+
+    // Write everything to the journal from now on, the journal is expected to be empty
+    public void attachJournal(KnifeJournal journal) {
+        this.journal = journal;
+        for (Session session : sessionList) {
+            session.dirty = true;
+        }
+        flush();
+        journal.writeState(first, end, cursor);
+    }
+
+    // Continue the history stored in the journal, anything in memory is dropped
+    public void restoreJournal(KnifeJournal journal, int first, int end, int cursor) {
+        sessionList.clear();
+        bytes = 0;
+        this.journal = journal;
+        this.first = first;
+        this.end = end;
+        this.cursor = cursor;
+        this.base = cursor;
+        sessionClosed = true;
+        trim();
+    }
+
+    public KnifeJournal detachJournal() {
+        KnifeJournal detached = journal;
+        if (detached != null) {
+            flush();
+            journal = null;
+
+            // Whatever is only on disk is gone now
+            first = base;
+            end = base + sessionList.size();
+            cursor = Math.max(first, Math.min(cursor, end));
+        }
+        return detached;
+    }
+
+    public void checkpoint(CharSequence text) {
+        if (journal == null) {
+            return;
+        }
+
+        flush();
+        journal.writeState(first, end, cursor);
+        journal.writeCheckpoint(text.length(), KnifeJournal.hash(text));
+    }
+
+    public void push(Regret regret, long time) {
+        // A new edit drops the steps which were undone
+        dropRedo();
+
+        Session last = sessionList.isEmpty() || base + sessionList.size() != end ? null : sessionList.getLast();
+        if (!sessionClosed && last != null && last.accept(regret, time, sessionTimeout)) {
+            last.add(regret, time);
+            bytes += regret.getBytes();
+        } else {
+            flush();
+            if (sessionList.isEmpty()) {
+                base = end;
+            }
+
+            Session session = new Session();
+            session.add(regret, time);
+            sessionList.add(session);
+            bytes += session.bytes;
+            end++;
+            cursor = end;
+            if (journal != null) {
+                journal.writeState(first, end, cursor);
+            }
+        }
+
+        sessionClosed = false;
+        trim();
+    }
+
+    // Add to the last session no matter what, so both are undone as one step
+    public void append(Regret regret, long time) {
+        Session last = sessionList.isEmpty() || cursor != end || base + sessionList.size() != end ? null : sessionList.getLast();
+        if (last == null) {
+            push(regret, time);
+            return;
+        }
+
+        last.add(regret, time);
+        bytes += regret.getBytes();
+        trim();
+    }
+
+    // Stop coalescing, the next edit always starts a new session
+    public void closeSession() {
+        sessionClosed = true;
+        flush();
+    }
+
+    public boolean canUndo() {
+        return cursor > first;
+    }
+
+    public boolean canRedo() {
+        return cursor < end;
+    }
+
+    // Returns the selection to restore, or -1 if there is nothing to undo
+    public int undo(Editable editable) {
+        if (!canUndo()) {
+            return -1;
+        }
+
+        closeSession();
+        Session session = load(cursor - 1);
+        if (session == null) {
+            return -1;
+        }
+
+        cursor--;
+        int selection = session.undo(editable);
+        if (journal != null) {
+            journal.writeState(first, end, cursor);
+        }
+        trim();
+        return selection;
+    }
+
+    // Returns the selection to restore, or -1 if there is nothing to redo
+    public int redo(Editable editable) {
+        if (!canRedo()) {
+            return -1;
+        }
+
+        closeSession();
+        Session session = load(cursor);
+        if (session == null) {
+            return -1;
+        }
+
+        cursor++;
+        int selection = session.redo(editable);
+        if (journal != null) {
+            journal.writeState(first, end, cursor);
+        }
+        trim();
+        return selection;
+    }
+
+    public void clear() {
+        sessionList.clear();
+        first = end;
+        base = end;
+        cursor = end;
+        bytes = 0;
+        sessionClosed = true;
+        if (journal != null) {
+            journal.writeState(first, end, cursor);
+        }
+    }
+
+    // Text was put in front of the text the history applies to, e.g. a page of a paged note. Spans
+    // starting at the start of the text may be joined to the ones of the text put before it, so steps
+    // touching it are dropped
+    public void shift(int length) {
+        move(1, Integer.MAX_VALUE, length);
+    }
+
+    // Only [start, end) of the text is kept, e.g. when pages of a paged note are written back. Steps
+    // reaching out of it can't be applied any more, they are dropped with the ones behind them
+    public void crop(int start, int end) {
+        move(start, end, -start);
+    }
+
+    // Keep the sessions next to the cursor which stay within [start, end) of the text, and move them
+    // by delta. Sessions only in the journal are dropped
+    private void move(int start, int end, int delta) {
+        closeSession();
+        if (cursor < base || cursor > base + sessionList.size()) {
+            clear();
+            return;
+        }
+
+        int newFirst = cursor;
+        long to = end;
+        while (newFirst > base && (to = within(sessionList.get(newFirst - 1 - base), start, to, false)) >= 0) {
+            newFirst--;
+        }
+
+        int newEnd = cursor;
+        to = end;
+        while (newEnd < base + sessionList.size() && (to = within(sessionList.get(newEnd - base), start, to, true)) >= 0) {
+            newEnd++;
+        }
+
+        while (base + sessionList.size() > newEnd) {
+            bytes -= sessionList.removeLast().bytes;
+        }
+        while (base < newFirst) {
+            bytes -= sessionList.removeFirst().bytes;
+            base++;
+        }
+        first = newFirst;
+        end = newEnd;
+
+        if (delta != 0) {
+            for (Session session : sessionList) {
+                session.shift(delta);
+            }
+        }
+        flush();
+        if (journal != null) {
+            journal.writeState(first, end, cursor);
+        }
+    }
+
+    // Whether the session only touches [start, end) of the text, end being in the text before the
+    // session if forward, else after it. Returns end on the other side of the session then, else -1
+    private static long within(Session session, int start, long end, boolean forward) {
+        List<Regret> regretList = session.regretList;
+        for (int i = 0; i < regretList.size(); i++) {
+            Regret regret = regretList.get(forward ? i : regretList.size() - 1 - i);
+            if (regret.getLow() < start || regret.getHigh(!forward) > end) {
+                return -1;
+            }
+
+            int grown = regret.getInserted().length() - regret.getRemoved().length();
+            end += forward ? grown : -grown;
+            if (regret.getHigh(forward) > end) {
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    // The part of the history kept depends on how badly memory is needed, and the budget stays that
+    // low until restoreMemory(), so the history doesn't grow right back
+    public void onTrimMemory(int level) {
+        long target;
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                target = 0;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+                target = bytes / 4;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+                target = bytes / 2;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+                // Only the UI is gone, or memory is getting short but there is no need to act yet
+                return;
+            default:
+                if (level < ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+                    return;
+                }
+                target = 0;
+                break;
+        }
+
+        closeSession();
+        trimmedBytes = trimmedBytes < 0 ? target : Math.min(trimmedBytes, target);
+        while (!sessionList.isEmpty() && bytes > target) {
+            evict();
+        }
+    }
+
+    // Lift the budget lowered by onTrimMemory(), e.g. once the app is in the foreground again
+    public void restoreMemory() {
+        trimmedBytes = -1;
+    }
+
+    // Bring the session at index into the memory window, paging it in from the journal if needed
+    private Session load(int index) {
+        if (index >= base && index < base + sessionList.size()) {
+            return sessionList.get(index - base);
+        }
+
+        List<Regret> regretList = journal != null ? journal.readSession(index) : null;
+        if (regretList == null || regretList.isEmpty()) {
+            // The journal lost it, nothing beyond this point can be reached any more
+            if (index < cursor) {
+                first = cursor;
+            } else {
+                end = cursor;
+            }
+            return null;
+        }
+
+        Session session = new Session();
+        for (Regret regret : regretList) {
+            session.add(regret, 0);
+        }
+        session.dirty = false;
+
+        if (index == base - 1) {
+            sessionList.addFirst(session);
+            base--;
+        } else if (index == base + sessionList.size()) {
+            sessionList.addLast(session);
+        } else {
+            sessionList.clear();
+            bytes = 0;
+            sessionList.add(session);
+            base = index;
+        }
+        bytes += session.bytes;
+        return session;
+    }
+
+    // Drop the steps which were undone, the sessions from the cursor on
+    private void dropRedo() {
+        if (cursor >= end) {
+            return;
+        }
+
+        while (!sessionList.isEmpty() && base + sessionList.size() > cursor) {
+            bytes -= sessionList.removeLast().bytes;
+        }
+        if (sessionList.isEmpty()) {
+            base = cursor;
+        }
+        end = cursor;
+        if (journal != null) {
+            journal.writeState(first, end, cursor);
+        }
+    }
+
+    private void trim() {
+        // The redo side goes first, the cursor can't pass sessions which aren't applied
+        if (end - first > maxSize) {
+            dropRedo();
+        }
+        while (end - first > maxSize) {
+            first++;
+            if (base < first) {
+                if (!sessionList.isEmpty()) {
+                    bytes -= sessionList.removeFirst().bytes;
+                }
+                base = first;
+            }
+        }
+
+        // Always keep one session in memory, even if it is larger than the budget on its own
+        while (sessionList.size() > 1 && (maxBytes > 0 && bytes > maxBytes || trimmedBytes >= 0 && bytes > trimmedBytes
+                || journal != null && sessionList.size() > memorySize)) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        if (journal == null) {
+            // The redo side goes first, the cursor can't pass sessions which aren't applied
+            if (cursor < end) {
+                dropRedo();
+                return;
+            }
+
+            bytes -= sessionList.removeFirst().bytes;
+            base++;
+            first = base;
+            return;
+        }
+
+        // Page out the side of the window farther away from the cursor
+        if (cursor - base >= base + sessionList.size() - cursor) {
+            Session session = sessionList.removeFirst();
+            write(base, session);
+            bytes -= session.bytes;
+            base++;
+        } else {
+            Session session = sessionList.removeLast();
+            write(base + sessionList.size(), session);
+            bytes -= session.bytes;
+        }
+    }
+
+    private void flush() {
+        int index = base;
+        for (Session session : sessionList) {
+            write(index++, session);
+        }
+    }
+
+    private void write(int index, Session session) {
+        if (journal != null && session.dirty) {
+            journal.writeSession(index, session.regretList);
+            session.dirty = false;
+        }
+    }
+
+    private static class Session {
+        private final List<Regret> regretList = new ArrayList<>(1);
+        private long lastTime;
+        private long bytes = 0;
+        private boolean dirty = true;
+
+        private void add(Regret regret, long time) {
+            regretList.add(regret);
+            lastTime = time;
+            bytes += regret.getBytes();
+            dirty = true;
+        }
+
+        private void shift(int delta) {
+            for (int i = 0; i < regretList.size(); i++) {
+                regretList.set(i, regretList.get(i).shift(delta));
+            }
+            dirty = true;
+        }
+
+        private boolean accept(Regret regret, long time, long timeout) {
+            if (time - lastTime > timeout) {
+                return false;
+            }
+
+            Regret last = regretList.get(regretList.size() - 1);
+            if (last.isDeletion() && regret.isDeletion()) {
+                // Backspace or forward delete next to the previous one
+                return regret.getStart() + regret.getRemoved().length() == last.getStart()
+                        || regret.getStart() == last.getStart();
+            }
+
+            if (last.isDeletion() || regret.isDeletion() || last.getInserted().isEmpty() || regret.getInserted().isEmpty()) {
+                return false;
+            }
+
+            // Typing, or the IME replacing its composing text, inside what was just inserted
+            int insertedEnd = last.getStart() + last.getInserted().length();
+            if (regret.getStart() < last.getStart() || regret.getStart() + regret.getRemoved().length() > insertedEnd) {
+                return false;
+            }
+
+            // A word ends when whitespace follows a non-whitespace char
+            String lastInserted = last.getInserted();
+            String inserted = regret.getInserted();
+            return !(Character.isWhitespace(inserted.charAt(0))
+                    && !Character.isWhitespace(lastInserted.charAt(lastInserted.length() - 1)));
+        }
+
+        private int undo(Editable editable) {
+            for (int i = regretList.size() - 1; i >= 0; i--) {
+                regretList.get(i).undo(editable);
+            }
+
+            return regretList.get(0).getSelectionBefore();
+        }
+
+        private int redo(Editable editable) {
+            for (Regret regret : regretList) {
+                regret.redo(editable);
+            }
+
+            return regretList.get(regretList.size() - 1).getSelectionAfter();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+
+import java.io.IOException;
+
+/**
+ * Keeps the HTML of every block (see {@link KnifeParser#nextBlock(Spanned, int)}) in a marker span
+ * over the block, so {@link #toHtml(Spannable)} only serializes the blocks changed since the last call.
+ * <p>
+ * The cache watches the text it is set on: text changes and format span changes mark the
+ * blocks they touch dirty, spans which only moved along with an edit elsewhere don't.
+ */
+public class KnifeHtmlCache implements TextWatcher, SpanWatcher, NoCopySpan {
+    // Last edit, the span updates it causes arrive after afterTextChanged()
+    private int editStart = -1;
+    private int editEnd;
+    private int editCount;
+
+    public String toHtml(Spannable text) {
+        return toHtml(text, 0);
+    }
+
+    // option is a combination of the KnifeParser.TO_HTML_* flags
+    public String toHtml(Spannable text, int option) {
+        StringBuilder out = new StringBuilder();
+        try {
+            toHtml(text, out, option);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    public void toHtml(Spannable text, Appendable out, int option) throws IOException {
+        if (text.getSpanStart(this) < 0) {
+            text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+
+        // Span updates of the last edit are delivered within the edit, so they are over by now
+        editStart = -1;
+
+        KnifeHtmlWriter writer = new KnifeHtmlWriter(out, option);
+        int next;
+
+        for (int i = 0; i < text.length(); i = next) {
+            next = KnifeParser.nextBlock(text, i);
+            int end = Math.min(next, text.length());
+
+            Fragment fragment = find(text, i, end, option);
+            if (fragment == null) {
+                StringBuilder html = new StringBuilder();
+                KnifeParser.withinBlock(new KnifeHtmlWriter(html, option), text, i, next);
+
+                for (Fragment stale : text.getSpans(i, end, Fragment.class)) {
+                    text.removeSpan(stale);
+                }
+                fragment = new Fragment(html.toString(), option);
+                text.setSpan(fragment, i, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+
+            writer.append(fragment.html);
+        }
+    }
+
+    // Drop all cached HTML of the text, e.g. after changing spans the cache can't see
+    public void invalidate(Spannable text) {
+        for (Fragment fragment : text.getSpans(0, text.length(), Fragment.class)) {
+            text.removeSpan(fragment);
+        }
+    }
+
+    private static Fragment find(Spanned text, int start, int end, int option) {
+        for (Fragment fragment : text.getSpans(start, end, Fragment.class)) {
+            if (!fragment.dirty && fragment.option == option && text.getSpanStart(fragment) == start && text.getSpanEnd(fragment) == end) {
+                return fragment;
+            }
+        }
+        return null;
+    }
+
+    // Fragments touching the range are marked as well, joining or splitting lines changes them
+    private static void markDirty(Spanned text, int start, int end) {
+        Fragment[] fragments = text.getSpans(Math.max(0, start - 1), Math.min(text.length(), end + 1), Fragment.class);
+        for (Fragment fragment : fragments) {
+            fragment.dirty = true;
+        }
+    }
+
+    private static boolean isFormat(Object what) {
+        return what instanceof CharacterStyle || what instanceof ParagraphStyle;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+        editStart = -1;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        editStart = start;
+        editEnd = start + before;
+        editCount = count;
+        if (text instanceof Spanned) {
+            markDirty((Spanned) text, start, start + count);
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (isFormat(what)) {
+            markDirty(text, start, end);
+        }
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (isFormat(what)) {
+            markDirty(text, start, end);
+        }
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        // Moved along with the last edit, the blocks around the edit are dirty already
+        if (!isFormat(what) || followsEdit(ostart, nstart) && followsEdit(oend, nend)) {
+            return;
+        }
+
+        markDirty(text, ostart, oend);
+        markDirty(text, nstart, nend);
+    }
+
+    private boolean followsEdit(int offset, int newOffset) {
+        if (editStart < 0) {
+            return false;
+        } else if (offset < editStart) {
+            return newOffset == offset;
+        } else if (offset > editEnd) {
+            return newOffset == offset + editCount - (editEnd - editStart);
+        } else {
+            return newOffset >= editStart && newOffset <= editStart + editCount;
+        }
+    }
+
+    private static class Fragment implements NoCopySpan {
+        private final String html;
+        private final int option;
+        private boolean dirty = false;
+
+        private Fragment(String html, int option) {
+            this.html = html;
+            this.option = option;
+        }
+    }
+}
@@ -0,0 +1,716 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import io.github.mthli.knife.utils.ThemeUtil;
+
+/**
+ * Reads the HTML written by {@link KnifeParser#toHtml(Spanned)} in a single pass, building the same
+ * text and spans as {@link android.text.Html#fromHtml(String, android.text.Html.ImageGetter, android.text.Html.TagHandler)}
+ * with {@link KnifeTagHandler} does on API 24 and above, without TagSoup and the SAX callbacks.
+ * <p>
+ * Markup out of the tag set Knife writes, or which TagSoup would have to fix up, makes {@link #read()}
+ * return null, the caller falls back to the framework parser then. Tags past the {@link KnifeParseLimits}
+ * only keep their text, and {@link #readText()} reads any source as plain text in linear time.
+ * {@link #readChunk(Carry)} reads a source cut anywhere out of a tag chunk by chunk, to the same text.
+ */
+class KnifeHtmlReader {
+    // Line breaks the framework keeps around a list, an item or a quote in legacy mode
+    private static final int MARGIN = 2;
+
+    private static final int BOLD = 0;
+    private static final int ITALIC = 1;
+    private static final int UNDERLINE = 2;
+    private static final int STRIKETHROUGH = 3;
+    private static final int MARK = 4;
+    private static final int LINK = 5;
+    private static final int LIST = 6;
+    private static final int ITEM = 7;
+    private static final int QUOTE = 8;
+
+    private final Context context;
+    private final String source;
+    private final KnifeSpanFactory factory;
+    private final KnifeParseLimits limits;
+    private final SpannableStringBuilder out = new SpannableStringBuilder();
+    private final StringBuilder text = new StringBuilder();
+    private final List<Element> stack = new ArrayList<>();
+    // With a factory, bullets, quotes and links are set at the end, in the order the framework
+    // path ends up with after KnifeSpanFactory.replaceSpans()
+    private final List<Element> bullets = new ArrayList<>();
+    private final List<Element> quotes = new ArrayList<>();
+    private final List<Element> links = new ArrayList<>();
+    // Without a factory, bullets and quotes which lose the blank line they end with at the end
+    private final List<Element> paragraphs = new ArrayList<>();
+    // Elements open at the start of a chunk which have text in the chunks before
+    private final List<Element> continued = new ArrayList<>();
+    private int pos = 0;
+    private int spanCount = 0;
+    private int inlineCount = 0;
+    private int linkCount = 0;
+
+    // factory can be null for the framework spans
+    KnifeHtmlReader(Context context, String source, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        this.context = context;
+        this.source = source;
+        this.factory = factory;
+        this.limits = limits;
+    }
+
+    // Raw '\n' is read as <br>, so the source doesn't need the replace() the framework path does
+    Spanned read() {
+        if (!readSource() || !stack.isEmpty()) {
+            return null;
+        }
+
+        setSpans();
+        return out;
+    }
+
+    // Read the source as a chunk of a longer one, after the chunks which left carry, and leave carry
+    // as this chunk does. The text before is read along as far as the chunk depends on it, then cut
+    // off again. An element still open at the end gets a span up to it, KnifeChunk.join() extends
+    // it over the span the element has in the chunk after
+    KnifeChunk readChunk(Carry carry) {
+        out.append(carry.tail);
+        int base = out.length();
+        spanCount = carry.spanCount;
+        for (Element open : carry.open) {
+            Element element = new Element(open.type, base, open.attr);
+            element.flat = open.flat;
+            element.continued = open.continued;
+            if (!isBlock(element.type)) {
+                inlineCount++;
+            }
+            if (element.type == LINK) {
+                linkCount++;
+            }
+            if (element.continued) {
+                continued.add(element);
+            }
+            stack.add(element);
+        }
+
+        if (!readSource()) {
+            return null;
+        }
+        setSpans();
+
+        // Outermost first, the elements still open are around the ones closed
+        List<KnifeChunk.Continuation> continuations = new ArrayList<>();
+        List<Element> open = new ArrayList<>();
+        int end = out.length();
+        for (Element element : stack) {
+            Element next = new Element(element.type, 0, element.attr);
+            next.flat = element.flat;
+            next.continued = !element.flat && (element.continued || element.start < end);
+            open.add(next);
+
+            Object span = element.flat || element.start == end ? null : createSpan(element);
+            if (span != null) {
+                out.setSpan(span, element.start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                if (element.continued) {
+                    continuations.add(new KnifeChunk.Continuation(span, end - base, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE));
+                }
+            }
+        }
+
+        for (Element element : continued) {
+            if (element.span != null) {
+                continuations.add(new KnifeChunk.Continuation(element.span, element.end - base, element.flags));
+            }
+        }
+
+        carry.open.clear();
+        carry.open.addAll(open);
+        carry.spanCount = spanCount;
+        carry.tail = out.subSequence(Math.max(0, end - 2), end).toString();
+        out.delete(0, base);
+        return new KnifeChunk(out, continuations);
+    }
+
+    private boolean readSource() {
+        int length = source.length();
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if (c == '<') {
+                flush();
+                if (!readTag()) {
+                    return false;
+                }
+            } else if (c == '&') {
+                if (!readEntity()) {
+                    return false;
+                }
+            } else if (c == '\r' || isInList()) {
+                return false;
+            } else {
+                append(c);
+                pos++;
+            }
+        }
+
+        flush();
+        return true;
+    }
+
+    private void setSpans() {
+        if (factory != null) {
+            setFactorySpans();
+            return;
+        }
+
+        // As the framework does: a paragraph span doesn't take the blank line it ends with
+        for (Element element : paragraphs) {
+            element.end = blankLineEnd(element.end);
+            element.flags = Spanned.SPAN_PARAGRAPH;
+            if (element.end > element.start) {
+                // The part of a continued element can start within a line, it isn't a paragraph on its own
+                int flags = isLineStart(element.start) ? Spanned.SPAN_PARAGRAPH : Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
+                out.setSpan(element.span, element.start, element.end, flags);
+            } else {
+                out.removeSpan(element.span);
+            }
+        }
+    }
+
+    // Any source as text: tags are dropped, lists, items and quotes only break the line
+    Spanned readText() {
+        int length = source.length();
+        int end = -1;
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if (c == '<' && end < pos) {
+                // Searched once per tag, a '<' without '>' after it doesn't search again
+                end = source.indexOf('>', pos);
+                if (end < 0) {
+                    end = length;
+                }
+            }
+
+            if (c == '<' && end < length) {
+                String name = tagName(pos + 1, end);
+                if (name.equals("br")) {
+                    append('\n');
+                } else if (isBlock(typeOf(name)) && lastChar() != '\n') {
+                    append('\n');
+                }
+                pos = end + 1;
+            } else if (c == '&' && readEntity()) {
+                continue;
+            } else {
+                append(c);
+                pos++;
+            }
+        }
+
+        flush();
+        return out;
+    }
+
+    private String tagName(int start, int end) {
+        if (start < end && source.charAt(start) == '/') {
+            start++;
+        }
+
+        int i = start;
+        while (i < end && isNameChar(source.charAt(i))) {
+            i++;
+        }
+        return source.substring(start, i).toLowerCase(Locale.US);
+    }
+
+    private void setFactorySpans() {
+        for (Element element : bullets) {
+            setParagraphSpan(element);
+        }
+
+        for (Element element : quotes) {
+            setParagraphSpan(element);
+        }
+
+        for (Element element : links) {
+            setSpan(element, createSpan(element), element.end);
+        }
+    }
+
+    // The framework's blank line fix-up, then the editor's range
+    private void setParagraphSpan(Element element) {
+        setSpan(element, createSpan(element), KnifeSpanFactory.paragraphEnd(out, blankLineEnd(element.end)));
+    }
+
+    // The end is kept for the span of a continued element even when its part in this chunk is empty
+    private void setSpan(Element element, Object span, int end) {
+        element.span = span;
+        element.end = end;
+        element.flags = Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
+        if (end > element.start) {
+            out.setSpan(span, element.start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    private int blankLineEnd(int end) {
+        return end >= 2 && out.charAt(end - 1) == '\n' && out.charAt(end - 2) == '\n' ? end - 1 : end;
+    }
+
+    private boolean isLineStart(int start) {
+        return start == 0 || out.charAt(start - 1) == '\n';
+    }
+
+    // Whitespace collapses like in the framework, a space after a space or a line break is dropped
+    private void append(char c) {
+        if (c == ' ') {
+            char pred = lastChar();
+            if (pred != ' ' && pred != '\n') {
+                text.append(' ');
+            }
+        } else {
+            text.append(c);
+        }
+    }
+
+    private char lastChar() {
+        if (text.length() > 0) {
+            return text.charAt(text.length() - 1);
+        } else if (out.length() > 0) {
+            return out.charAt(out.length() - 1);
+        } else {
+            return '\n';
+        }
+    }
+
+    private void flush() {
+        if (text.length() > 0) {
+            out.append(text);
+            text.setLength(0);
+        }
+    }
+
+    private boolean readEntity() {
+        // Only look a few chars ahead, so a lot of '&' without ';' stays linear
+        int end = pos + 1;
+        int max = Math.min(source.length(), pos + 12);
+        while (end < max && source.charAt(end) != ';') {
+            end++;
+        }
+        if (end >= max) {
+            return false;
+        }
+
+        String name = source.substring(pos + 1, end);
+        int c;
+        if (name.startsWith("#x") || name.startsWith("#X")) {
+            c = parseCodePoint(name, 2, 16);
+        } else if (name.startsWith("#")) {
+            c = parseCodePoint(name, 1, 10);
+        } else {
+            c = namedEntity(name);
+        }
+
+        if (c < 0 || isInList()) {
+            return false;
+        }
+
+        pos = end + 1;
+        if (Character.isSupplementaryCodePoint(c)) {
+            char[] chars = Character.toChars(c);
+            append(chars[0]);
+            append(chars[1]);
+        } else {
+            append((char) c);
+        }
+        return true;
+    }
+
+    private static int parseCodePoint(String name, int start, int radix) {
+        if (start >= name.length()) {
+            return -1;
+        }
+
+        int c = 0;
+        for (int i = start; i < name.length(); i++) {
+            int digit = Character.digit(name.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            c = c * radix + digit;
+            if (c > Character.MAX_CODE_POINT) {
+                return -1;
+            }
+        }
+
+        // TagSoup maps 0x80 - 0x9F to windows-1252, leave them to it
+        if (c == 0 || c >= 0x80 && c <= 0x9F || c >= 0xD800 && c <= 0xDFFF) {
+            return -1;
+        }
+        return c;
+    }
+
+    private static int namedEntity(String name) {
+        switch (name) {
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "amp":
+                return '&';
+            case "quot":
+                return '"';
+            case "nbsp":
+                return '\u00A0';
+            case "zwj":
+                return '\u200D';
+            default:
+                return -1;
+        }
+    }
+
+    private boolean readTag() {
+        int length = source.length();
+        int i = pos + 1;
+        boolean closing = i < length && source.charAt(i) == '/';
+        if (closing) {
+            i++;
+        }
+
+        int nameStart = i;
+        while (i < length && isNameChar(source.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart) {
+            return false;
+        }
+        String name = source.substring(nameStart, i).toLowerCase(Locale.US);
+
+        String href = null;
+        String style = null;
+        boolean empty = false;
+        while (true) {
+            while (i < length && source.charAt(i) == ' ') {
+                i++;
+            }
+            if (i >= length) {
+                return false;
+            }
+
+            char c = source.charAt(i);
+            if (c == '>') {
+                i++;
+                break;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '>') {
+                empty = true;
+                i += 2;
+                break;
+            } else if (closing || !isNameChar(c)) {
+                return false;
+            }
+
+            int attrStart = i;
+            while (i < length && isNameChar(source.charAt(i))) {
+                i++;
+            }
+            String attr = source.substring(attrStart, i).toLowerCase(Locale.US);
+            if (i >= length || source.charAt(i) != '=' || i + 1 >= length) {
+                return false;
+            }
+
+            char quote = source.charAt(i + 1);
+            if (quote != '"' && quote != '\'') {
+                return false;
+            }
+            int valueEnd = source.indexOf(quote, i + 2);
+            if (valueEnd < 0) {
+                return false;
+            }
+            String value = source.substring(i + 2, valueEnd);
+            i = valueEnd + 1;
+
+            // Entities or line breaks in a value are left to TagSoup
+            if (value.indexOf('&') >= 0 || value.indexOf('\n') >= 0) {
+                return false;
+            } else if (name.equals("a") && attr.equals("href")) {
+                href = value;
+            } else if (name.equals("mark") && attr.equals("style")) {
+                style = value;
+            } else {
+                return false;
+            }
+        }
+
+        pos = i;
+        if (name.equals("br")) {
+            // The framework writes the line break on </br>, which TagSoup adds right after <br>
+            if (closing || isInList()) {
+                return false;
+            }
+            out.append('\n');
+            return true;
+        }
+
+        int type = typeOf(name);
+        if (type < 0 || empty) {
+            return false;
+        } else if (closing) {
+            return end(type);
+        } else {
+            return start(type, href, style);
+        }
+    }
+
+    private boolean start(int type, String href, String style) {
+        Element parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        int parentType = parent == null ? -1 : parent.type;
+
+        // Nesting TagSoup would change
+        if (parentType == LIST && type != ITEM || parentType != LIST && type == ITEM) {
+            return false;
+        } else if (isBlock(type) && inlineCount > 0) {
+            return false;
+        } else if (type == LINK && linkCount > 0) {
+            return false;
+        }
+
+        if (isBlock(type)) {
+            appendNewlines();
+        } else {
+            inlineCount++;
+        }
+
+        if (type == LINK) {
+            linkCount++;
+        }
+
+        Element element = new Element(type, out.length(), type == MARK ? style : href);
+        // Past the limits the tag keeps its text and line breaks but sets no span
+        element.flat = stack.size() >= limits.getMaxDepth() || spanCount >= limits.getMaxSpans();
+        stack.add(element);
+        return true;
+    }
+
+    private boolean end(int type) {
+        if (stack.isEmpty() || stack.get(stack.size() - 1).type != type) {
+            return false;
+        }
+
+        Element element = stack.remove(stack.size() - 1);
+        if (isBlock(type)) {
+            appendNewlines();
+        } else {
+            inlineCount--;
+        }
+
+        if (type == LINK) {
+            linkCount--;
+        }
+
+        // A continued element has text in the chunks before, even if it has none in this one
+        if (element.start == out.length() && !element.continued || element.flat) {
+            return true;
+        }
+
+        spanCount++;
+
+        element.end = out.length();
+        if (factory != null && type == ITEM) {
+            bullets.add(element);
+        } else if (factory != null && type == QUOTE) {
+            quotes.add(element);
+        } else if (factory != null && type == LINK) {
+            if (element.attr != null) {
+                links.add(element);
+            }
+        } else {
+            Object span = createSpan(element);
+            if (span != null) {
+                setSpan(element, span, element.end);
+            }
+            if (type == ITEM || type == QUOTE) {
+                paragraphs.add(element);
+            }
+        }
+        return true;
+    }
+
+    private Object createSpan(Element element) {
+        Object span;
+        switch (element.type) {
+            case BOLD:
+                span = new StyleSpan(Typeface.BOLD);
+                break;
+            case ITALIC:
+                span = new StyleSpan(Typeface.ITALIC);
+                break;
+            case UNDERLINE:
+                span = new UnderlineSpan();
+                break;
+            case STRIKETHROUGH:
+                span = new StrikethroughSpan();
+                break;
+            case MARK:
+                int color = KnifeTagHandler.getMarkBackgroundColor(element.attr);
+                span = new BackgroundColorSpan(ThemeUtil.optimizeDarkMode(context, color));
+                break;
+            case LINK:
+                if (element.attr == null) {
+                    span = null;
+                } else {
+                    span = factory != null ? factory.createURLSpan(element.attr) : new URLSpan(element.attr);
+                }
+                break;
+            case ITEM:
+                span = factory != null ? factory.createBulletSpan() : new BulletSpan();
+                break;
+            case QUOTE:
+                span = factory != null ? factory.createQuoteSpan() : new QuoteSpan();
+                break;
+            default:
+                span = null;
+                break;
+        }
+        return span;
+    }
+
+    // Make the text end with MARGIN line breaks, unless it is empty
+    private void appendNewlines() {
+        int length = out.length();
+        if (length == 0) {
+            return;
+        }
+
+        int existing = 0;
+        for (int i = length - 1; i >= 0 && out.charAt(i) == '\n'; i--) {
+            existing++;
+        }
+
+        for (int i = existing; i < MARGIN; i++) {
+            out.append('\n');
+        }
+    }
+
+    // Text right in a <ul> is moved into an item by TagSoup
+    private boolean isInList() {
+        return !stack.isEmpty() && stack.get(stack.size() - 1).type == LIST;
+    }
+
+    private static boolean isBlock(int type) {
+        return type == LIST || type == ITEM || type == QUOTE;
+    }
+
+    private static boolean isNameChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-';
+    }
+
+    private static int typeOf(String name) {
+        switch (name) {
+            case "b":
+            case "strong":
+                return BOLD;
+            case "i":
+            case "em":
+                return ITALIC;
+            case "u":
+                return UNDERLINE;
+            case "del":
+            case "s":
+            case "strike":
+                return STRIKETHROUGH;
+            case "mark":
+                return MARK;
+            case "a":
+                return LINK;
+            case "ul":
+                return LIST;
+            case "li":
+                return ITEM;
+            case "blockquote":
+                return QUOTE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * What the chunks of a source read so far leave to the next one, see {@link #readChunk(Carry)}:
+     * the elements still open, the spans set, which count against the limits, and the last two
+     * chars of the text.
+     */
+    static class Carry {
+        private final List<Element> open = new ArrayList<>();
+        private int spanCount = 0;
+        private String tail = "";
+
+        Carry() {
+        }
+
+        Carry(Carry other) {
+            open.addAll(other.open);
+            spanCount = other.spanCount;
+            tail = other.tail;
+        }
+
+        // Line breaks the text ends with, up to the two which matter to the next chunk
+        int getNewlines() {
+            return KnifeParser.trailingNewlines(tail, 0);
+        }
+
+        // Start a span count of its own, e.g. for a page which has to be within the limits on its own
+        void clearSpanCount() {
+            spanCount = 0;
+        }
+
+        // The text before the next chunk is text now, e.g. after it was edited
+        void setText(CharSequence text) {
+            String last = text.length() >= 2 ? text.subSequence(text.length() - 2, text.length()).toString() : tail + text;
+            tail = last.substring(Math.max(0, last.length() - 2));
+        }
+
+        // After a chunk another parser read to text: the elements of openTags are open, without any text yet
+        void skip(Context context, Spanned text, List<String> openTags, KnifeSpanFactory factory, KnifeParseLimits limits) {
+            StringBuilder tags = new StringBuilder();
+            for (String tag : openTags) {
+                tags.append(tag);
+            }
+
+            Carry reopened = new Carry();
+            open.clear();
+            if (new KnifeHtmlReader(context, tags.toString(), factory, limits).readChunk(reopened) != null) {
+                open.addAll(reopened.open);
+            }
+            spanCount += text.getSpans(0, text.length(), Object.class).length;
+            setText(text);
+        }
+    }
+
+    private static class Element {
+        private final int type;
+        private final int start;
+        private final String attr;
+        private int end;
+        private boolean flat = false;
+        // Open at the start of the chunk, with text in the chunks before
+        private boolean continued = false;
+        // The span set at the end, and the flags the whole span has
+        private Object span;
+        private int flags;
+
+        private Element(int type, int start, String attr) {
+            this.type = type;
+            this.start = start;
+            this.attr = attr;
+        }
+    }
+}
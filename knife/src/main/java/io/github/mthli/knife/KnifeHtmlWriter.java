@@ -0,0 +1,74 @@
+package io.github.mthli.knife;
+
+import java.io.IOException;
+
+/**
+ * Appendable the HTML of {@link KnifeParser#toHtml(android.text.Spanned, Appendable)} goes through.
+ * A list or quote already ends a line, so the one {@code <br>} written right after
+ * {@code </ul>} or {@code </blockquote>} is dropped here instead of in a pass over the output.
+ */
+class KnifeHtmlWriter implements Appendable {
+    private static final String BR = "<br>";
+
+    private final Appendable out;
+    private final int option;
+    private boolean blockEnded = false;
+
+    // option is a combination of the KnifeParser.TO_HTML_* flags
+    KnifeHtmlWriter(Appendable out, int option) {
+        this.out = out;
+        this.option = option;
+    }
+
+    public int getOption() {
+        return option;
+    }
+
+    public boolean hasOption(int flag) {
+        return (option & flag) != 0;
+    }
+
+    @Override
+    public KnifeHtmlWriter append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public KnifeHtmlWriter append(CharSequence csq, int start, int end) throws IOException {
+        if (start >= end) {
+            return this;
+        }
+
+        if (blockEnded && end - start >= BR.length() && BR.contentEquals(csq.subSequence(start, start + BR.length()))) {
+            start += BR.length();
+        }
+
+        blockEnded = endsWith(csq, start, end, "</ul>") || endsWith(csq, start, end, "</blockquote>");
+        out.append(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public KnifeHtmlWriter append(char c) throws IOException {
+        blockEnded = false;
+        out.append(c);
+        return this;
+    }
+
+    public KnifeHtmlWriter append(int i) throws IOException {
+        return append(String.valueOf(i));
+    }
+
+    private static boolean endsWith(CharSequence csq, int start, int end, String suffix) {
+        if (end - start < suffix.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < suffix.length(); i++) {
+            if (csq.charAt(end - suffix.length() + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,616 @@
+package io.github.mthli.knife;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only file behind a {@link KnifeHistory}. Every record is written on a background thread,
+ * sessions are read back synchronously when the history pages them in: from memory while their
+ * write is still queued, straight from the file otherwise, so undo/redo never wait for the writes.
+ * <p>
+ * The file is a header followed by records of [tag][payload size][payload]. A session may be
+ * written several times while it grows, the last record wins; the last state record tells which
+ * sessions are still part of the history and the last checkpoint which text they belong to.
+ */
+public class KnifeJournal {
+    private static final String TAG = "KnifeJournal";
+    private static final int MAGIC = 0x4B4E4A02;
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final int COMPACT_MIN_SIZE = 64 * 1024;
+
+    private static final byte RECORD_SESSION = 1;
+    private static final byte RECORD_STATE = 2;
+    private static final byte RECORD_CHECKPOINT = 3;
+
+    private static final byte SPAN_STYLE = 1;
+    private static final byte SPAN_UNDERLINE = 2;
+    private static final byte SPAN_STRIKETHROUGH = 3;
+    private static final byte SPAN_BACKGROUND_COLOR = 4;
+    private static final byte SPAN_BULLET = 5;
+    private static final byte SPAN_KNIFE_BULLET = 6;
+    private static final byte SPAN_QUOTE = 7;
+    private static final byte SPAN_KNIFE_QUOTE = 8;
+    private static final byte SPAN_URL = 9;
+    private static final byte SPAN_KNIFE_URL = 10;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Main thread view of the file, kept in step with the queued writes
+    private final Map<Integer, Long> offsetMap = new HashMap<>();
+    private long length = HEADER_SIZE;
+    private int first = 0;
+    private int end = 0;
+    private int cursor = 0;
+    private int checkpointLength = -1;
+    private int checkpointHash = 0;
+    private RandomAccessFile reader;
+
+    // Session payloads whose write is still queued, removed by the executor once written
+    private final Map<Integer, byte[]> pendingMap = new ConcurrentHashMap<>();
+
+    // Only touched on the executor
+    private RandomAccessFile raf;
+    private volatile boolean broken = false;
+
+    public KnifeJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getFirst() {
+        return first;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    // Whether the history in this journal was recorded against this text
+    public boolean matches(CharSequence text) {
+        return !broken && checkpointLength == text.length() && checkpointHash == hash(text) && end > first;
+    }
+
+    // Read the journal in the background, onLoaded runs on the main thread afterwards
+    public void load(final Runnable onLoaded) {
+        closeReader();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read();
+                } catch (IOException e) {
+                    Log.w(TAG, "Can't read " + file, e);
+                    offsetMap.clear();
+                    checkpointLength = -1;
+                    broken = true;
+                }
+
+                handler.post(onLoaded);
+            }
+        });
+    }
+
+    // Drop everything, the journal starts over empty
+    public void reset() {
+        closeReader();
+        offsetMap.clear();
+        pendingMap.clear();
+        length = HEADER_SIZE;
+        first = 0;
+        end = 0;
+        cursor = 0;
+        checkpointLength = -1;
+        broken = false;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RandomAccessFile out = open();
+                    out.setLength(0);
+                    out.writeInt(MAGIC);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    public void writeSession(int index, List<Regret> regretList) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(index);
+            out.writeInt(regretList.size());
+            for (Regret regret : regretList) {
+                writeRegret(out, regret);
+            }
+
+            offsetMap.put(index, length);
+            append(RECORD_SESSION, index, bytes.toByteArray());
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void writeState(int first, int end, int cursor) {
+        this.first = first;
+        this.end = end;
+        this.cursor = cursor;
+        append(RECORD_STATE, -1, toBytes(first, end, cursor));
+    }
+
+    public void writeCheckpoint(int textLength, int textHash) {
+        checkpointLength = textLength;
+        checkpointHash = textHash;
+        append(RECORD_CHECKPOINT, -1, toBytes(textLength, textHash));
+    }
+
+    // Returns null if the session is not in the journal
+    public List<Regret> readSession(int index) {
+        byte[] payload = pendingMap.get(index);
+        Long offset = offsetMap.get(index);
+        if (payload == null && (offset == null || broken)) {
+            return null;
+        }
+
+        try {
+            if (payload == null) {
+                // Already written, the executor is done with this record
+                if (reader == null) {
+                    reader = new RandomAccessFile(file, "r");
+                }
+                reader.seek(offset);
+                if (reader.readByte() != RECORD_SESSION) {
+                    return null;
+                }
+
+                payload = new byte[reader.readInt()];
+                reader.readFully(payload);
+            }
+            return readSession(new DataInputStream(new ByteArrayInputStream(payload)));
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read session " + index + " from " + file, e);
+            return null;
+        }
+    }
+
+    public void close() {
+        closeReader();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Can't close " + file, e);
+                    }
+                    raf = null;
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    public static int hash(CharSequence text) {
+        int hash = 0;
+        for (int i = 0; i < text.length(); i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+
+    private void append(final byte tag, final int index, final byte[] payload) {
+        final byte[] record = new byte[RECORD_HEADER_SIZE + payload.length];
+        record[0] = tag;
+        record[1] = (byte) (payload.length >>> 24);
+        record[2] = (byte) (payload.length >>> 16);
+        record[3] = (byte) (payload.length >>> 8);
+        record[4] = (byte) payload.length;
+        System.arraycopy(payload, 0, record, RECORD_HEADER_SIZE, payload.length);
+        length += record.length;
+
+        if (broken || executor.isShutdown()) {
+            return;
+        }
+
+        if (tag == RECORD_SESSION) {
+            pendingMap.put(index, payload);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!broken) {
+                        RandomAccessFile out = open();
+                        out.seek(out.length());
+                        out.write(record);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    // A later write of the same session keeps its own payload
+                    if (tag == RECORD_SESSION) {
+                        pendingMap.remove(index, payload);
+                    }
+                }
+            }
+        });
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Can't close " + file, e);
+            }
+            reader = null;
+        }
+    }
+
+    private RandomAccessFile open() throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < HEADER_SIZE) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+            }
+        }
+        return raf;
+    }
+
+    private void fail(IOException e) {
+        Log.w(TAG, "Can't write " + file, e);
+        broken = true;
+    }
+
+    // Runs on the executor before anything else is queued
+    private void read() throws IOException {
+        Map<Integer, Long> sizeMap = new HashMap<>();
+        long good = HEADER_SIZE;
+
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == MAGIC) {
+                    long offset = HEADER_SIZE;
+                    while (true) {
+                        int tag = in.read();
+                        if (tag < 0) {
+                            break;
+                        }
+
+                        byte[] payload;
+                        try {
+                            payload = new byte[in.readInt()];
+                            in.readFully(payload);
+                        } catch (EOFException e) {
+                            // Torn write at the end, the process died while appending
+                            break;
+                        }
+
+                        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                        if (tag == RECORD_SESSION) {
+                            int index = record.readInt();
+                            offsetMap.put(index, offset);
+                            sizeMap.put(index, (long) RECORD_HEADER_SIZE + payload.length);
+                        } else if (tag == RECORD_STATE) {
+                            first = record.readInt();
+                            end = record.readInt();
+                            cursor = record.readInt();
+                        } else if (tag == RECORD_CHECKPOINT) {
+                            checkpointLength = record.readInt();
+                            checkpointHash = record.readInt();
+                        }
+
+                        offset += RECORD_HEADER_SIZE + payload.length;
+                        good = offset;
+                    }
+                } else {
+                    good = 0;
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            good = 0;
+        }
+
+        // Sessions outside the history were truncated or evicted
+        long live = HEADER_SIZE;
+        for (Integer index : new ArrayList<>(offsetMap.keySet())) {
+            if (index < first || index >= end) {
+                offsetMap.remove(index);
+            } else {
+                live += sizeMap.get(index);
+            }
+        }
+
+        RandomAccessFile out = open();
+        if (good < HEADER_SIZE) {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            good = HEADER_SIZE;
+        } else if (out.length() > good) {
+            out.setLength(good);
+        }
+        length = good;
+
+        if (length > COMPACT_MIN_SIZE && length > 2 * live) {
+            compact(sizeMap);
+        }
+    }
+
+    private void compact(Map<Integer, Long> sizeMap) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        Map<Integer, Long> compacted = new HashMap<>();
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            for (int index = first; index < end; index++) {
+                Long offset = offsetMap.get(index);
+                if (offset == null) {
+                    continue;
+                }
+
+                byte[] record = new byte[sizeMap.get(index).intValue()];
+                raf.seek(offset);
+                raf.readFully(record);
+                compacted.put(index, out.getFilePointer());
+                out.write(record);
+            }
+
+            out.write(RECORD_STATE);
+            out.writeInt(12);
+            out.writeInt(first);
+            out.writeInt(end);
+            out.writeInt(cursor);
+            if (checkpointLength >= 0) {
+                out.write(RECORD_CHECKPOINT);
+                out.writeInt(8);
+                out.writeInt(checkpointLength);
+                out.writeInt(checkpointHash);
+            }
+        } finally {
+            out.close();
+        }
+
+        raf.close();
+        raf = null;
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+
+        offsetMap.clear();
+        offsetMap.putAll(compacted);
+        length = file.length();
+    }
+
+    private static byte[] toBytes(int... values) {
+        byte[] bytes = new byte[values.length * 4];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i * 4] = (byte) (values[i] >>> 24);
+            bytes[i * 4 + 1] = (byte) (values[i] >>> 16);
+            bytes[i * 4 + 2] = (byte) (values[i] >>> 8);
+            bytes[i * 4 + 3] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static List<Regret> readSession(DataInputStream in) throws IOException {
+        in.readInt(); // index
+        int count = in.readInt();
+        List<Regret> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readRegret(in));
+        }
+        return list;
+    }
+
+    private static void writeRegret(DataOutputStream out, Regret regret) throws IOException {
+        out.writeInt(regret.getStart());
+        out.writeInt(regret.getSpanEnd());
+        writeString(out, regret.getRemoved());
+        writeString(out, regret.getInserted());
+        writeSpans(out, regret.getSpansBefore());
+        writeSpans(out, regret.getSpansAfter());
+        out.writeInt(regret.getSelectionBefore());
+        out.writeInt(regret.getSelectionAfter());
+    }
+
+    private static Regret readRegret(DataInputStream in) throws IOException {
+        int start = in.readInt();
+        int spanEnd = in.readInt();
+        String removed = readString(in);
+        String inserted = readString(in);
+        KnifeSpanRecord[] spansBefore = readSpans(in);
+        KnifeSpanRecord[] spansAfter = readSpans(in);
+        int selectionBefore = in.readInt();
+        int selectionAfter = in.readInt();
+        if (removed.isEmpty() && inserted.isEmpty()) {
+            return new Regret(start, spanEnd, spansBefore, spansAfter, selectionBefore, selectionAfter);
+        }
+        return new Regret(start, removed, inserted, spansBefore, spansAfter, selectionBefore, selectionAfter);
+    }
+
+    // writeUTF() is limited to 64K
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        out.writeInt(text.length());
+        out.writeChars(text);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    private static void writeSpans(DataOutputStream out, KnifeSpanRecord[] records) throws IOException {
+        List<KnifeSpanRecord> list = new ArrayList<>(records.length);
+        for (KnifeSpanRecord record : records) {
+            if (typeOf(record.getSpan()) != 0) {
+                list.add(record);
+            }
+        }
+
+        out.writeInt(list.size());
+        for (KnifeSpanRecord record : list) {
+            Object span = record.getSpan();
+            byte type = typeOf(span);
+            out.writeByte(type);
+            out.writeInt(record.getStart());
+            out.writeInt(record.getEnd());
+            out.writeInt(record.getFlags());
+
+            switch (type) {
+                case SPAN_STYLE:
+                    out.writeInt(((StyleSpan) span).getStyle());
+                    break;
+                case SPAN_BACKGROUND_COLOR:
+                    out.writeInt(((BackgroundColorSpan) span).getBackgroundColor());
+                    break;
+                case SPAN_KNIFE_BULLET:
+                    KnifeBulletSpan bullet = (KnifeBulletSpan) span;
+                    out.writeInt(bullet.getBulletColor());
+                    out.writeInt(bullet.getBulletRadius());
+                    out.writeInt(bullet.getBulletGapWidth());
+                    break;
+                case SPAN_KNIFE_QUOTE:
+                    KnifeQuoteSpan quote = (KnifeQuoteSpan) span;
+                    out.writeInt(quote.getQuoteColor());
+                    out.writeInt(quote.getQuoteStripeWidth());
+                    out.writeInt(quote.getQuoteGapWidth());
+                    break;
+                case SPAN_URL:
+                    writeString(out, ((URLSpan) span).getURL());
+                    break;
+                case SPAN_KNIFE_URL:
+                    KnifeURLSpan link = (KnifeURLSpan) span;
+                    writeString(out, link.getURL());
+                    out.writeInt(link.getLinkColor());
+                    out.writeBoolean(link.isLinkUnderline());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static KnifeSpanRecord[] readSpans(DataInputStream in) throws IOException {
+        KnifeSpanRecord[] records = new KnifeSpanRecord[in.readInt()];
+        for (int i = 0; i < records.length; i++) {
+            byte type = in.readByte();
+            int start = in.readInt();
+            int end = in.readInt();
+            int flags = in.readInt();
+
+            Object span;
+            switch (type) {
+                case SPAN_STYLE:
+                    span = new StyleSpan(in.readInt());
+                    break;
+                case SPAN_UNDERLINE:
+                    span = new UnderlineSpan();
+                    break;
+                case SPAN_STRIKETHROUGH:
+                    span = new StrikethroughSpan();
+                    break;
+                case SPAN_BACKGROUND_COLOR:
+                    span = new BackgroundColorSpan(in.readInt());
+                    break;
+                case SPAN_BULLET:
+                    span = new BulletSpan();
+                    break;
+                case SPAN_KNIFE_BULLET:
+                    span = new KnifeBulletSpan(in.readInt(), in.readInt(), in.readInt());
+                    break;
+                case SPAN_QUOTE:
+                    span = new QuoteSpan();
+                    break;
+                case SPAN_KNIFE_QUOTE:
+                    span = new KnifeQuoteSpan(in.readInt(), in.readInt(), in.readInt());
+                    break;
+                case SPAN_URL:
+                    span = new URLSpan(readString(in));
+                    break;
+                case SPAN_KNIFE_URL:
+                    span = new KnifeURLSpan(readString(in), in.readInt(), in.readBoolean());
+                    break;
+                default:
+                    throw new IOException("Unknown span type " + type);
+            }
+
+            records[i] = new KnifeSpanRecord(span, start, end, flags);
+        }
+        return records;
+    }
+
+    private static byte typeOf(Object span) {
+        if (span instanceof StyleSpan) {
+            return SPAN_STYLE;
+        } else if (span instanceof UnderlineSpan) {
+            return SPAN_UNDERLINE;
+        } else if (span instanceof StrikethroughSpan) {
+            return SPAN_STRIKETHROUGH;
+        } else if (span instanceof BackgroundColorSpan) {
+            return SPAN_BACKGROUND_COLOR;
+        } else if (span instanceof KnifeBulletSpan) {
+            return SPAN_KNIFE_BULLET;
+        } else if (span instanceof BulletSpan) {
+            return SPAN_BULLET;
+        } else if (span instanceof KnifeQuoteSpan) {
+            return SPAN_KNIFE_QUOTE;
+        } else if (span instanceof QuoteSpan) {
+            return SPAN_QUOTE;
+        } else if (span instanceof KnifeURLSpan) {
+            return SPAN_KNIFE_URL;
+        } else if (span instanceof URLSpan) {
+            return SPAN_URL;
+        } else {
+            return 0;
+        }
+    }
+}
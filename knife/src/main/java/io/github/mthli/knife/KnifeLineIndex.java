@@ -0,0 +1,114 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+/**
+ * Start offsets of the lines ('\n' separated paragraphs) of a text, updated from text changes
+ * instead of splitting the whole text again.
+ * <p>
+ * The starts are kept in a gap buffer moved to the last edit. Starts before the gap are absolute,
+ * starts after it are stored as distance from the end of the text, so an edit only touches the
+ * lines it changes, no matter how many lines follow it.
+ */
+public class KnifeLineIndex implements TextWatcher {
+    private int[] buffer = new int[16];
+    private int gapStart = 0;
+    private int gapEnd = buffer.length;
+    private int length = -1;
+
+    // Rebuild from scratch when the length shows changes were missed, e.g. before it was registered
+    public void sync(CharSequence text) {
+        if (length == text.length()) {
+            return;
+        }
+
+        gapStart = 0;
+        gapEnd = buffer.length;
+        length = text.length();
+        add(0);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                add(i + 1);
+            }
+        }
+    }
+
+    public int getLineCount() {
+        return buffer.length - (gapEnd - gapStart);
+    }
+
+    public int getLineStart(int line) {
+        return line < gapStart ? buffer[line] : length - buffer[line + gapEnd - gapStart];
+    }
+
+    // Offset of the '\n' ending the line, or the text length for the last line
+    public int getLineEnd(int line) {
+        return line + 1 < getLineCount() ? getLineStart(line + 1) - 1 : length;
+    }
+
+    public int getLineForOffset(int offset) {
+        int low = 0;
+        int high = getLineCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getLineStart(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        if (length < 0 || length + count - before != text.length()) {
+            length = -1;
+            sync(text);
+            return;
+        }
+
+        // Line starts in (start, start + before] belonged to the replaced text
+        moveGap(getLineForOffset(start) + 1);
+        while (gapEnd < buffer.length && length - buffer[gapEnd] <= start + before) {
+            gapEnd++;
+        }
+
+        length = text.length();
+        for (int i = start; i < start + count; i++) {
+            if (text.charAt(i) == '\n') {
+                add(i + 1);
+            }
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+    }
+
+    private void moveGap(int line) {
+        while (gapStart > line) {
+            buffer[--gapEnd] = length - buffer[--gapStart];
+        }
+        while (gapStart < line) {
+            buffer[gapStart++] = length - buffer[gapEnd++];
+        }
+    }
+
+    private void add(int lineStart) {
+        if (gapStart == gapEnd) {
+            int[] grown = new int[buffer.length * 2];
+            int tail = buffer.length - gapEnd;
+            System.arraycopy(buffer, 0, grown, 0, gapStart);
+            System.arraycopy(buffer, gapEnd, grown, grown.length - tail, tail);
+            gapEnd = grown.length - tail;
+            buffer = grown;
+        }
+        buffer[gapStart++] = lineStart;
+    }
+}
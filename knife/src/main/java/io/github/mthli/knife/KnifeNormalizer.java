@@ -0,0 +1,94 @@
+package io.github.mthli.knife;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges character format spans of the same type and attributes which overlap or touch,
+ * so repeated formatting doesn't pile up spans. Paragraph spans are one per line on purpose
+ * and are left alone.
+ */
+public class KnifeNormalizer {
+
+    // Only spans touching [start, end] are looked at, the rest of the text is expected to be normalized
+    public static void normalize(Spannable text, int start, int end) {
+        start = Math.max(0, start - 1);
+        end = Math.min(text.length(), end + 1);
+
+        Object[] spans = text.getSpans(start, end, Object.class);
+        Map<String, List<Object>> map = new HashMap<>();
+        for (Object span : spans) {
+            if (!isMergeable(text, span)) {
+                continue;
+            }
+
+            String key = KnifeSpanRecord.keyOf(span) + ':' + text.getSpanFlags(span);
+            List<Object> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                map.put(key, list);
+            }
+            list.add(span);
+        }
+
+        for (List<Object> list : map.values()) {
+            if (list.size() > 1) {
+                merge(text, list);
+            }
+        }
+    }
+
+    private static void merge(final Spannable text, List<Object> list) {
+        Collections.sort(list, new Comparator<Object>() {
+            @Override
+            public int compare(Object a, Object b) {
+                return text.getSpanStart(a) - text.getSpanStart(b);
+            }
+        });
+
+        Object current = list.get(0);
+        int currentStart = text.getSpanStart(current);
+        int currentEnd = text.getSpanEnd(current);
+        for (int i = 1; i < list.size(); i++) {
+            Object span = list.get(i);
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+
+            if (spanStart <= currentEnd) {
+                text.removeSpan(span);
+                if (spanEnd > currentEnd) {
+                    currentEnd = spanEnd;
+                    text.setSpan(current, currentStart, currentEnd, text.getSpanFlags(current));
+                }
+            } else {
+                current = span;
+                currentStart = spanStart;
+                currentEnd = spanEnd;
+            }
+        }
+    }
+
+    private static boolean isMergeable(Spanned text, Object span) {
+        if (!KnifeSpanRecord.isRecordable(text, span) || text.getSpanStart(span) >= text.getSpanEnd(span)) {
+            return false;
+        }
+
+        return span instanceof StyleSpan
+                || span instanceof UnderlineSpan
+                || span instanceof StrikethroughSpan
+                || span instanceof BackgroundColorSpan
+                || span instanceof URLSpan;
+    }
+}
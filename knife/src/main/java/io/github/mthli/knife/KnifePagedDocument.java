@@ -0,0 +1,227 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A note as pages of HTML, for the paged mode of {@link KnifeText#fromHtmlPaged(String)}: the editor
+ * holds the text of a few pages around the visible one, the other pages stay HTML. Pages are cut
+ * where no element but lists and quotes is open, below API 24 where none is (see
+ * {@link KnifeParser#nextChunk(String, int, int, List, int)}), and each page is read after the ones
+ * before it, so the texts of all pages put together are the text of the whole note.
+ */
+class KnifePagedDocument {
+    private final List<Page> pages = new ArrayList<>();
+    private final int pageLength;
+    private final int cut = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? KnifeParser.CUT_CONTAINERS : KnifeParser.CUT_OUTSIDE;
+
+    KnifePagedDocument(String source, int pageLength) {
+        this.pageLength = pageLength;
+        split(source, new ArrayList<String>(), pages);
+        if (pages.isEmpty()) {
+            pages.add(new Page("", new ArrayList<String>()));
+        }
+        pages.get(0).carry = new KnifeHtmlReader.Carry();
+    }
+
+    private void split(String source, List<String> open, List<Page> out) {
+        int next;
+        for (int i = 0; i < source.length(); i = next) {
+            List<String> tags = new ArrayList<>(open);
+            next = KnifeParser.nextChunk(source, i, pageLength, open, cut);
+            out.add(new Page(source.substring(i, next), tags));
+        }
+    }
+
+    int getPageCount() {
+        return pages.size();
+    }
+
+    // Text of the page, read after before, the text of the editor in front of it, or after the pages
+    // before it as they were parsed if null. Each page is within the limits on its own
+    KnifeChunk parse(Context context, int index, CharSequence before, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        KnifeHtmlReader.Carry carry = new KnifeHtmlReader.Carry(getCarry(context, index, factory, limits));
+        if (before != null) {
+            carry.setText(before);
+        }
+
+        Page page = pages.get(index);
+        page.chunk = read(context, index, carry, factory, limits);
+        return page.chunk;
+    }
+
+    private KnifeChunk read(Context context, int index, KnifeHtmlReader.Carry carry, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        Page page = pages.get(index);
+        Page next = index + 1 < pages.size() ? pages.get(index + 1) : null;
+        // fromHtml() starts the note with a ZWJ
+        String html = index == 0 && !page.html.isEmpty() && !page.html.startsWith("&zwj;") ? "&zwj;" + page.html : page.html;
+
+        carry.clearSpanCount();
+        KnifeChunk chunk = KnifeParser.fromHtmlChunk(context, html, page.tags, getTags(index + 1), carry, factory, limits);
+        if (next != null && next.carry == null) {
+            next.carry = carry;
+        }
+        return chunk;
+    }
+
+    // What the pages before leave to the page, the ones not parsed yet are parsed for it
+    private KnifeHtmlReader.Carry getCarry(Context context, int index, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        int known = index;
+        while (pages.get(known).carry == null) {
+            known--;
+        }
+
+        for (int i = known; i < index; i++) {
+            read(context, i, new KnifeHtmlReader.Carry(pages.get(i).carry), factory, limits);
+        }
+        return pages.get(index).carry;
+    }
+
+    // Line breaks the text before the page ends with
+    int getNewlines(Context context, int index, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        return getCarry(context, index, factory, limits).getNewlines();
+    }
+
+    // Join the spans going on from the page put in front of the page at index, whose text starts at
+    // start in text
+    void join(Spannable text, int index, int start) {
+        KnifeChunk chunk = pages.get(index).chunk;
+        if (chunk != null) {
+            chunk.join(text, start);
+        }
+    }
+
+    // Tags of the elements open at the start of the page at index, none at the end of the note
+    private List<String> getTags(int index) {
+        return index < pages.size() ? pages.get(index).tags : new ArrayList<String>();
+    }
+
+    // Write the edited text of pages [start, end) back, newlines is what the text before it ends with.
+    // Its HTML goes on from the lists and quotes open at the start of the pages and leaves the ones
+    // open at their end open, it is cut into pages again and the number of pages it takes now is returned
+    int replace(int start, int end, Spanned text, int newlines, int option) {
+        // fromHtml() puts the ZWJ the note starts with back
+        int from = start == 0 && text.length() > 0 && text.charAt(0) == '\u200D' ? 1 : 0;
+        List<String> tags = pages.get(start).tags;
+        String html = continueHtml(KnifeParser.toHtml((Spanned) text.subSequence(from, text.length()), option),
+                tags, getTags(end), newlines);
+
+        List<Page> replaced = new ArrayList<>();
+        split(html, new ArrayList<>(tags), replaced);
+        if (replaced.isEmpty() && pages.size() == end - start) {
+            replaced.add(new Page("", tags));
+        }
+
+        // The text before is the same, the pages after it are read after the new text
+        KnifeHtmlReader.Carry carry = pages.get(start).carry;
+        pages.subList(start, end).clear();
+        pages.addAll(start, replaced);
+        if (!replaced.isEmpty()) {
+            pages.get(start).carry = carry;
+        }
+        if (start + replaced.size() < pages.size()) {
+            pages.get(start + replaced.size()).carry = null;
+        }
+        return replaced.size();
+    }
+
+    // Change the pages [start, end) one at a time: each is parsed, changed by format and written back.
+    // Returns the number of pages they take now
+    int format(Context context, int start, int end, PageFormat format, KnifeSpanFactory factory,
+               KnifeParseLimits limits, int option) {
+        int index = start;
+        for (int i = start; i < end; i++) {
+            int newlines = getNewlines(context, index, factory, limits);
+            Editable text = new SpannableStringBuilder(parse(context, index, null, factory, limits).getText());
+            format.format(text);
+            index += replace(index, index + 1, text, newlines, option);
+        }
+        return index - start;
+    }
+
+    // HTML of a text going on from the lists and quotes of startTags and leaving the ones of endTags
+    // open, from the HTML the writer makes of it on its own: the tags it opens at the start and closes
+    // at the end for them are left out, and the ones it doesn't write are added. Closing an element
+    // at the start makes the text before end with two line breaks, which the text already has
+    static String continueHtml(String html, List<String> startTags, List<String> endTags, int newlines) {
+        StringBuilder out = new StringBuilder();
+        int from = 0;
+        for (int i = 0; i < startTags.size(); i++) {
+            String open = "<" + nameOf(startTags.get(i)) + ">";
+            if (html.startsWith(open, from)) {
+                from += open.length();
+                continue;
+            }
+
+            for (int j = startTags.size() - 1; j >= i; j--) {
+                out.append("</").append(nameOf(startTags.get(j))).append('>');
+            }
+            for (int j = newlines; j < 2 && html.startsWith("<br>", from); j++) {
+                from += 4;
+            }
+            break;
+        }
+
+        int to = html.length();
+        int reopen = endTags.size();
+        for (int i = 0; i < endTags.size(); i++) {
+            String close = "</" + nameOf(endTags.get(i)) + ">";
+            if (to - close.length() < from || !html.startsWith(close, to - close.length())) {
+                reopen = i;
+                break;
+            }
+            to -= close.length();
+        }
+
+        out.append(html, from, to);
+        for (int i = reopen; i < endTags.size(); i++) {
+            out.append(endTags.get(i));
+        }
+        return out.toString();
+    }
+
+    private static String nameOf(String tag) {
+        return KnifeParser.tagName(tag, 1, tag.length() - 1);
+    }
+
+    // HTML of the whole note, the pages [start, end) being held as text by the editor have windowHtml
+    // and the text before them ends with newlines
+    String toHtml(int start, int end, String windowHtml, int newlines) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < start; i++) {
+            out.append(pages.get(i).html);
+        }
+        out.append(continueHtml(windowHtml, getTags(start), getTags(end), newlines));
+        for (int i = end; i < pages.size(); i++) {
+            out.append(pages.get(i).html);
+        }
+        return out.toString();
+    }
+
+    interface PageFormat {
+        void format(Editable page);
+    }
+
+    private static class Page {
+        private final String html;
+        // Tags of the lists and quotes open at the start of the page
+        private final List<String> tags;
+        // What the pages before leave to it, null until they are parsed
+        private KnifeHtmlReader.Carry carry;
+        // The text it was last parsed to, for joining the spans of the page put before it
+        private KnifeChunk chunk;
+
+        private Page(String html, List<String> tags) {
+            this.html = html;
+            this.tags = tags;
+        }
+    }
+}
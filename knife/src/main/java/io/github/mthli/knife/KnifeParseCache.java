@@ -0,0 +1,128 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.util.LruCache;
+
+import io.github.mthli.knife.utils.ThemeUtil;
+
+/**
+ * Parsed notes by their HTML, for lists and previews which bind the same notes again and again.
+ * An entry is keyed by a 64-bit hash and the length of the source, the theme the mark colors are
+ * made for, and the settings of the span factory and of the limits.
+ * <p>
+ * The parsed text is kept as an immutable {@link SpannedString} and returned as it is, so it can be
+ * set on any number of views; an EditText copies it into its own Editable anyway.
+ */
+public class KnifeParseCache {
+    private final LruCache<Key, Spanned> cache;
+
+    // maxChars is the budget in chars of parsed text
+    public KnifeParseCache(int maxChars) {
+        cache = new LruCache<Key, Spanned>(maxChars) {
+            @Override
+            protected int sizeOf(Key key, Spanned value) {
+                return Math.max(1, value.length());
+            }
+        };
+    }
+
+    public Spanned fromHtml(Context context, String source) {
+        return fromHtml(context, source, null);
+    }
+
+    public Spanned fromHtml(Context context, String source, KnifeSpanFactory factory) {
+        return fromHtml(context, source, factory, KnifeParseLimits.DEFAULT);
+    }
+
+    // Parsed outside of the lock, two threads missing the same note both parse it
+    public Spanned fromHtml(Context context, String source, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        Key key = new Key(source, ThemeUtil.isNightMode(context), factory, limits);
+        Spanned spanned = cache.get(key);
+        if (spanned == null) {
+            spanned = new SpannedString(KnifeParser.fromHtml(context, source, factory, limits));
+            // A note over the whole budget would only evict all the others
+            if (spanned.length() <= cache.maxSize()) {
+                cache.put(key, spanned);
+            }
+        }
+        return spanned;
+    }
+
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    public void resize(int maxChars) {
+        cache.resize(maxChars);
+    }
+
+    // Chars of parsed text in the cache
+    public int size() {
+        return cache.size();
+    }
+
+    public int maxSize() {
+        return cache.maxSize();
+    }
+
+    public int hitCount() {
+        return cache.hitCount();
+    }
+
+    public int missCount() {
+        return cache.missCount();
+    }
+
+    @Override
+    public String toString() {
+        return "KnifeParseCache{hits=" + hitCount() + ", misses=" + missCount() + ", size=" + size() + "/" + maxSize() + "}";
+    }
+
+    private static class Key {
+        private final long hash;
+        private final int length;
+        private final boolean night;
+        private final KnifeSpanFactory factory;
+        private final KnifeParseLimits limits;
+
+        private Key(String source, boolean night, KnifeSpanFactory factory, KnifeParseLimits limits) {
+            this.hash = hash(source);
+            this.length = source.length();
+            this.night = night;
+            this.factory = factory;
+            this.limits = limits;
+        }
+
+        // FNV-1a, a note isn't kept alive by its key
+        private static long hash(String source) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < source.length(); i++) {
+                hash ^= source.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return hash == other.hash && length == other.length && night == other.night
+                    && (factory == null ? other.factory == null : factory.equals(other.factory))
+                    && limits.equals(other.limits);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (hash ^ hash >>> 32);
+            result = 31 * result + (night ? 1 : 0);
+            result = 31 * result + (factory != null ? factory.hashCode() : 0);
+            return 31 * result + limits.hashCode();
+        }
+    }
+}
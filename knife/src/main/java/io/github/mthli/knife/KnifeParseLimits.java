@@ -0,0 +1,52 @@
+package io.github.mthli.knife;
+
+/**
+ * Bounds of {@link KnifeParser#fromHtml(android.content.Context, String, KnifeSpanFactory, KnifeParseLimits)},
+ * so synced or pasted HTML can't make parsing hang. Structure past the limits is kept as plain text:
+ * tags nested deeper than maxDepth or coming after maxSpans spans don't become spans, and a source
+ * longer than maxLength is read as text without any format.
+ */
+public class KnifeParseLimits {
+    public static final KnifeParseLimits DEFAULT = new KnifeParseLimits(32, 50000, 1024 * 1024);
+
+    private final int maxDepth;
+    private final int maxSpans;
+    private final int maxLength;
+
+    public KnifeParseLimits(int maxDepth, int maxSpans, int maxLength) {
+        if (maxDepth <= 0 || maxSpans < 0 || maxLength < 0) {
+            throw new IllegalArgumentException("maxDepth must > 0, maxSpans and maxLength must >= 0");
+        }
+
+        this.maxDepth = maxDepth;
+        this.maxSpans = maxSpans;
+        this.maxLength = maxLength;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxSpans() {
+        return maxSpans;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        KnifeParseLimits other = (KnifeParseLimits) o;
+        return maxDepth == other.maxDepth && maxSpans == other.maxSpans && maxLength == other.maxLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * maxDepth + maxSpans) + maxLength;
+    }
+}
@@ -20,7 +20,11 @@ package io.github.mthli.knife;
 import android.app.Application;
 import android.content.Context;
 import android.graphics.Typeface;
+import android.os.Build;
+import android.text.Editable;
 import android.text.Html;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.style.BackgroundColorSpan;
@@ -34,104 +38,537 @@ import android.text.style.StyleSpan;
 import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 public class KnifeParser {
+    // Write chars outside ASCII as they are instead of as &#NNNN; entities,
+    // only the chars with a meaning in HTML are escaped. Meant for UTF-8 output
+    public static final int TO_HTML_UTF8 = 0x01;
+
+    // Keep format tags open across span transitions instead of closing and opening them
+    // again at every transition, e.g. <b>a<i>b</i>c</b> instead of <b>a</b><b><i>b</i></b><b>c</b>
+    public static final int TO_HTML_MINIMAL = 0x02;
+
+    // Where nextChunk() may cut: only where no element is open, also between the lines and items of
+    // lists and quotes, or anywhere out of a tag
+    static final int CUT_OUTSIDE = 0;
+    static final int CUT_CONTAINERS = 1;
+    static final int CUT_ANYWHERE = 2;
+
+    // Tags which run longer are opened first, so they are closed last
+    private static final Comparator<Tag> LONGEST_FIRST = new Comparator<Tag>() {
+        @Override
+        public int compare(Tag a, Tag b) {
+            return b.end - a.end;
+        }
+    };
+
     public static Spanned fromHtml(Context context, String source) {
+        return fromHtml(context, source, null);
+    }
+
+    // With a factory the bullet, quote and link spans are the ones it creates, cut to the editor's ranges
+    public static Spanned fromHtml(Context context, String source, KnifeSpanFactory factory) {
+        return fromHtml(context, source, factory, KnifeParseLimits.DEFAULT);
+    }
+
+    public static Spanned fromHtml(Context context, String source, KnifeSpanFactory factory, KnifeParseLimits limits) {
         if (!TextUtils.isEmpty(source) && !source.startsWith("&zwj;")) {
             source = "&zwj;" + source;
         }
+
+        // Too long to format, keep the text
+        if (source.length() > limits.getMaxLength()) {
+            return new KnifeHtmlReader(context, source, factory, limits).readText();
+        }
+
+        // The reader builds what the framework does from API 24 on, older versions differ
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Spanned spanned = new KnifeHtmlReader(context, source, factory, limits).read();
+            if (spanned != null) {
+                return spanned;
+            }
+        }
+
+        // The framework parser has no limits of its own, past them the text is all that's kept
+        if (!isBounded(source, limits)) {
+            return new KnifeHtmlReader(context, source, factory, limits).readText();
+        }
+
         source = source.replace("\n", "<br>");
-        return Html.fromHtml(source, null, new KnifeTagHandler(context));
+        Spanned spanned = Html.fromHtml(source, null, new KnifeTagHandler(context));
+        Editable editable = spanned instanceof Editable ? (Editable) spanned : new SpannableStringBuilder(spanned);
+        trimSpans(editable, limits.getMaxSpans());
+        if (factory != null) {
+            factory.replaceSpans(editable, 0, editable.length());
+        }
+        return editable;
     }
 
-    public static String toHtml(Spanned text) {
-        StringBuilder out = new StringBuilder();
-        withinHtml(out, text);
-        return tidy(out.toString());
+    // Whether the source opens at most maxSpans elements and nests them at most maxDepth deep,
+    // checked in one scan over the tags before the framework parser gets it
+    private static boolean isBounded(String source, KnifeParseLimits limits) {
+        int depth = 0;
+        int count = 0;
+        int i = source.indexOf('<');
+        while (i >= 0) {
+            int end;
+            if (source.startsWith("<!--", i)) {
+                end = source.indexOf("-->", i + 4);
+                end = end < 0 ? -1 : end + 2;
+            } else {
+                end = tagEnd(source, i + 1);
+                if (end < 0) {
+                    return true;
+                }
+
+                String name = tagName(source, i + 1, end);
+                if (source.charAt(i + 1) == '/') {
+                    depth = Math.max(0, depth - 1);
+                } else if (source.charAt(end - 1) != '/' && !isVoid(name)) {
+                    if (++count > limits.getMaxSpans() || ++depth > limits.getMaxDepth()) {
+                        return false;
+                    }
+                }
+            }
+            i = end < 0 ? -1 : source.indexOf('<', end + 1);
+        }
+        return true;
     }
 
-    private static void withinHtml(StringBuilder out, Spanned text) {
-        int next;
+    // The framework parser has no limits, keep the first maxSpans spans in the order of the text
+    private static void trimSpans(final Spannable text, int maxSpans) {
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+        if (spans.length <= maxSpans) {
+            return;
+        }
 
-        for (int i = 0; i < text.length(); i = next) {
-            next = text.nextSpanTransition(i, text.length(), ParagraphStyle.class);
-
-            ParagraphStyle[] styles = text.getSpans(i, next, ParagraphStyle.class);
-            if (styles.length == 2) {
-                if (styles[0] instanceof BulletSpan && styles[1] instanceof QuoteSpan) {
-                    // Let a <br> follow the BulletSpan or QuoteSpan end, so next++
-                    withinBulletThenQuote(out, text, i, next++);
-                } else if (styles[0] instanceof QuoteSpan && styles[1] instanceof BulletSpan) {
-                    withinQuoteThenBullet(out, text, i, next++);
-                } else {
-                    withinContent(out, text, i, next);
-                }
-            } else if (styles.length == 1) {
-                if (styles[0] instanceof BulletSpan) {
-                    withinBullet(out, text, i, next++);
-                } else if (styles[0] instanceof QuoteSpan) {
-                    withinQuote(out, text, i, next++);
-                } else {
-                    withinContent(out, text, i, next);
+        Arrays.sort(spans, new Comparator<Object>() {
+            @Override
+            public int compare(Object a, Object b) {
+                return text.getSpanStart(a) - text.getSpanStart(b);
+            }
+        });
+        for (int i = maxSpans; i < spans.length; i++) {
+            text.removeSpan(spans[i]);
+        }
+    }
+
+    // End of the chunk of source from start on: the first line break, <br>, </li>, </ul> or </blockquote>
+    // after at least minLength chars where cut allows it, else the end of source. With CUT_ANYWHERE a
+    // chunk without any after twice minLength ends right before a tag or a space. open has the tags
+    // of the elements open at start and is left with the ones open at the end of the chunk
+    static int nextChunk(String source, int start, int minLength, List<String> open, int cut) {
+        int length = source.length();
+        int i = start;
+        while (i < length) {
+            char c = source.charAt(i);
+            if (cut == CUT_ANYWHERE && i - start >= 2 * minLength && (c == '<' || c == ' ')) {
+                return i;
+            }
+
+            if (c == '\n') {
+                i++;
+                if (i - start >= minLength && canCut(open, cut)) {
+                    return i;
                 }
+                continue;
+            } else if (c != '<') {
+                i++;
+                continue;
+            }
+
+            if (source.startsWith("<!--", i)) {
+                int end = source.indexOf("-->", i + 4);
+                i = end < 0 ? length : end + 3;
+                continue;
+            }
+
+            int end = tagEnd(source, i + 1);
+            if (end < 0) {
+                return length;
+            }
+
+            boolean closing = i + 1 < end && source.charAt(i + 1) == '/';
+            String name = tagName(source, i + 1, end);
+            String tag = source.substring(i, end + 1);
+            i = end + 1;
+
+            boolean safe;
+            if (closing) {
+                close(open, name);
+                safe = name.equals("li") || name.equals("ul") || name.equals("blockquote");
+            } else if (name.equals("br")) {
+                safe = true;
             } else {
-                withinContent(out, text, i, next);
+                if (source.charAt(end - 1) != '/' && !isVoid(name)) {
+                    open.add(tag);
+                }
+                safe = false;
+            }
+
+            if (safe && i - start >= minLength && canCut(open, cut)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static boolean canCut(List<String> open, int cut) {
+        if (cut == CUT_ANYWHERE) {
+            return true;
+        } else if (cut == CUT_OUTSIDE) {
+            return open.isEmpty();
+        }
+
+        for (String tag : open) {
+            String name = tagName(tag, 1, tag.length() - 1);
+            if (!name.equals("ul") && !name.equals("blockquote")) {
+                return false;
             }
         }
+        return true;
     }
 
-    private static void withinBulletThenQuote(StringBuilder out, Spanned text, int start, int end) {
-        out.append("<ul><li>");
-        withinQuote(out, text, start, end);
-        out.append("</li></ul>");
+    // Close the element of name and the ones opened after it, a closing tag without one is left out
+    private static void close(List<String> open, String name) {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            String tag = open.get(i);
+            if (tagName(tag, 1, tag.length() - 1).equals(name)) {
+                open.subList(i, open.size()).clear();
+                return;
+            }
+        }
     }
 
-    private static void withinQuoteThenBullet(StringBuilder out, Spanned text, int start, int end) {
-        out.append("<blockquote>");
-        withinBullet(out, text, start, end);
-        out.append("</blockquote>");
+    // The '>' closing the tag, a quoted attribute value can contain '>' as well
+    private static int tagEnd(String source, int start) {
+        char quote = 0;
+        boolean value = false;
+        for (int i = start; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (value && (c == '"' || c == '\'')) {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+
+            if (c == '=') {
+                value = true;
+            } else if (c != ' ') {
+                value = false;
+            }
+        }
+        return -1;
     }
 
-    private static void withinBullet(StringBuilder out, Spanned text, int start, int end) {
-        out.append("<ul>");
+    // Lower case name of the tag between '<' and '>', without the '/' of a closing tag
+    static String tagName(String source, int start, int end) {
+        if (start < end && source.charAt(start) == '/') {
+            start++;
+        }
 
-        int next;
+        int nameEnd = start;
+        while (nameEnd < end && Character.isLetterOrDigit(source.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        return source.substring(start, nameEnd).toLowerCase(Locale.US);
+    }
 
-        for (int i = start; i < end; i = next) {
-            next = text.nextSpanTransition(i, end, BulletSpan.class);
+    private static boolean isVoid(String name) {
+        switch (name) {
+            case "br":
+            case "hr":
+            case "img":
+            case "input":
+            case "meta":
+            case "link":
+            case "wbr":
+                return true;
+            default:
+                return false;
+        }
+    }
 
-            BulletSpan[] spans = text.getSpans(i, next, BulletSpan.class);
-            for (BulletSpan span : spans) {
-                out.append("<li>");
+    // Parse a chunk cut by nextChunk() after the chunks which left carry, startTags are the tags open
+    // at its start and endTags the ones open at its end. Markup the reader leaves to the framework,
+    // and any chunk below API 24, is parsed after a ZWJ, the line breaks the text before ends with
+    // and startTags, which are cut off again; the spans of elements open across the cut aren't joined then
+    static KnifeChunk fromHtmlChunk(Context context, String chunk, List<String> startTags, List<String> endTags,
+                                    KnifeHtmlReader.Carry carry, KnifeSpanFactory factory, KnifeParseLimits limits) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && chunk.length() <= limits.getMaxLength()) {
+            KnifeChunk read = new KnifeHtmlReader(context, chunk, factory, limits).readChunk(carry);
+            if (read != null) {
+                return read;
             }
+        }
 
-            withinContent(out, text, i, next);
-            for (BulletSpan span : spans) {
-                out.append("</li>");
+        int newlines = carry.getNewlines();
+        StringBuilder source = new StringBuilder("&zwj;");
+        for (int i = 0; i < newlines; i++) {
+            source.append("<br>");
+        }
+
+        boolean block = false;
+        for (String tag : startTags) {
+            String name = tagName(tag, 1, tag.length() - 1);
+            block |= name.equals("ul") || name.equals("li") || name.equals("blockquote");
+            source.append(tag);
+        }
+        source.append(chunk);
+
+        // A block opened makes the text end with two line breaks
+        int prefix = 1 + (block ? 2 : newlines);
+        Spanned spanned = fromHtml(context, source.toString(), factory, limits);
+        Spanned text = (Spanned) spanned.subSequence(Math.min(prefix, spanned.length()), spanned.length());
+        carry.skip(context, text, endTags, factory, limits);
+        return new KnifeChunk(text);
+    }
+
+    // Line breaks the text ends with, up to the two which matter to the next chunk
+    static int trailingNewlines(CharSequence text, int previous) {
+        int count = 0;
+        for (int i = text.length() - 1; i >= 0 && count < 2; i--) {
+            if (text.charAt(i) != '\n') {
+                return count;
             }
+            count++;
+        }
+        return Math.min(2, count + previous);
+    }
+
+    public static String toHtml(Spanned text) {
+        return toHtml(text, 0);
+    }
+
+    public static String toHtml(Spanned text, int option) {
+        StringBuilder out = new StringBuilder();
+        try {
+            toHtml(text, out, option);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new IllegalStateException(e);
         }
+        return out.toString();
+    }
+
+    // Stream the HTML instead of building it as one String, a Writer is an Appendable as well
+    public static void toHtml(Spanned text, Appendable out) throws IOException {
+        toHtml(text, out, 0);
+    }
+
+    public static void toHtml(Spanned text, Appendable out, int option) throws IOException {
+        withinHtml(new KnifeHtmlWriter(out, option), text);
+    }
+
+    // Written as UTF-8, the stream is flushed but not closed
+    public static void toHtml(Spanned text, OutputStream out) throws IOException {
+        toHtml(text, out, 0);
+    }
 
-        out.append("</ul>");
+    public static void toHtml(Spanned text, OutputStream out, int option) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        toHtml(text, writer, option);
+        writer.flush();
     }
 
-    private static void withinQuote(StringBuilder out, Spanned text, int start, int end) {
+    private static void withinHtml(KnifeHtmlWriter out, Spanned text) throws IOException {
         int next;
 
-        for (int i = start; i < end; i = next) {
-            next = text.nextSpanTransition(i, end, QuoteSpan.class);
+        for (int i = 0; i < text.length(); i = next) {
+            next = nextBlock(text, i);
+            withinBlock(out, text, i, next);
+        }
+    }
+
+    // End of the block starting at start, blocks are written on their own and their HTML only
+    // depends on the text and spans inside them. A list or quote block runs over all the lists
+    // and quotes overlapping each other and ends after the '\n' following them
+    static int nextBlock(Spanned text, int start) {
+        int end = containerEnd(text, start);
+        if (end > start) {
+            // The closing tag ends the line already, so the '\n' goes with the block
+            return end < text.length() && text.charAt(end) == '\n' ? end + 1 : end;
+        }
 
-            QuoteSpan[] quotes = text.getSpans(i, next, QuoteSpan.class);
-            for (QuoteSpan quote : quotes) {
-                out.append("<blockquote>");
+        // Plain text, one line and the line breaks after it
+        int next = text.nextSpanTransition(start, text.length(), ParagraphStyle.class);
+        int nl = TextUtils.indexOf(text, '\n', start, next);
+        if (nl < 0) {
+            return next;
+        }
+
+        while (nl < next && text.charAt(nl) == '\n') {
+            nl++;
+        }
+        return nl;
+    }
+
+    // Whether the block from start on is a list or a quote. The <br> right after one isn't written,
+    // so the HTML of the text after it depends on it
+    static boolean isContainerBlock(Spanned text, int start) {
+        return containerEnd(text, start) > start;
+    }
+
+    // End of the lists and quotes starting at start and the ones overlapping them, start if there are none
+    private static int containerEnd(Spanned text, int start) {
+        int end = start;
+        while (true) {
+            int next = end;
+            for (ParagraphStyle style : text.getSpans(start, Math.max(end, start + 1), ParagraphStyle.class)) {
+                if (isListOrQuote(style)) {
+                    next = Math.max(next, text.getSpanEnd(style));
+                }
+            }
+
+            if (next == end) {
+                return end;
             }
+            end = next;
+        }
+    }
+
+    // Lists and quotes nest to any depth: the spans are opened outermost first and kept on a stack,
+    // a span which ends out of order is closed with the ones above it, which are opened again.
+    // Items of the same list separated by one line break share the <ul>
+    static void withinBlock(KnifeHtmlWriter out, final Spanned text, int start, int end) throws IOException {
+        end = Math.min(end, text.length());
+
+        List<ParagraphStyle> spans = new ArrayList<>();
+        int last = start;
+        for (ParagraphStyle style : text.getSpans(start, end, ParagraphStyle.class)) {
+            if (isListOrQuote(style) && text.getSpanStart(style) < text.getSpanEnd(style)) {
+                spans.add(style);
+                last = Math.max(last, text.getSpanEnd(style));
+            }
+        }
+
+        if (spans.isEmpty()) {
+            withinContent(out, text, start, end);
+            return;
+        }
+
+        // The '\n' after the last list or quote isn't written, their closing tag ends the line
+        end = Math.min(end, last);
+
+        // Stable, so spans over the same range nest in the order they were set
+        Collections.sort(spans, new Comparator<ParagraphStyle>() {
+            @Override
+            public int compare(ParagraphStyle a, ParagraphStyle b) {
+                if (text.getSpanStart(a) != text.getSpanStart(b)) {
+                    return text.getSpanStart(a) - text.getSpanStart(b);
+                }
+                return text.getSpanEnd(b) - text.getSpanEnd(a);
+            }
+        });
+
+        List<ParagraphStyle> stack = new ArrayList<>();
+        boolean listOpen = false; // </ul> of the last closed item isn't written yet
+        int k = 0;
+
+        for (int i = start; i < end; ) {
+            int low = 0;
+            while (low < stack.size() && text.getSpanEnd(stack.get(low)) > i) {
+                low++;
+            }
+
+            List<ParagraphStyle> opening = new ArrayList<>();
+            for (int j = stack.size() - 1; j >= low; j--) {
+                ParagraphStyle span = stack.remove(j);
+                if (text.getSpanEnd(span) > i) {
+                    opening.add(0, span);
+                }
+
+                if (listOpen) {
+                    out.append("</ul>");
+                    listOpen = false;
+                }
 
-            withinContent(out, text, i, next);
-            for (QuoteSpan quote : quotes) {
+                if (span instanceof BulletSpan) {
+                    out.append("</li>");
+                    listOpen = true;
+                } else {
+                    out.append("</blockquote>");
+                }
+            }
+
+            while (k < spans.size() && text.getSpanStart(spans.get(k)) <= i) {
+                opening.add(spans.get(k++));
+            }
+
+            for (ParagraphStyle span : opening) {
+                if (span instanceof BulletSpan) {
+                    out.append(listOpen ? "<li>" : "<ul><li>");
+                    listOpen = false;
+                } else {
+                    if (listOpen) {
+                        out.append("</ul>");
+                        listOpen = false;
+                    }
+                    out.append("<blockquote>");
+                }
+                stack.add(span);
+            }
+
+            int closing = end;
+            for (ParagraphStyle span : stack) {
+                closing = Math.min(closing, text.getSpanEnd(span));
+            }
+
+            int next = k < spans.size() ? Math.min(closing, text.getSpanStart(spans.get(k))) : closing;
+            boolean nextItem = listOpen && next < closing && spans.get(k) instanceof BulletSpan;
+            if (nextItem && next == i + 1 && text.charAt(i) == '\n') {
+                // The line break between two items is the </li><li>
+            } else {
+                if (listOpen) {
+                    out.append("</ul>");
+                    listOpen = false;
+                }
+                withinContent(out, text, i, next);
+            }
+            i = next;
+        }
+
+        for (int j = stack.size() - 1; j >= 0; j--) {
+            if (listOpen) {
+                out.append("</ul>");
+                listOpen = false;
+            }
+
+            if (stack.get(j) instanceof BulletSpan) {
+                out.append("</li>");
+                listOpen = true;
+            } else {
                 out.append("</blockquote>");
             }
         }
+
+        if (listOpen) {
+            out.append("</ul>");
+        }
+    }
+
+    private static boolean isListOrQuote(ParagraphStyle style) {
+        return style instanceof BulletSpan || style instanceof QuoteSpan;
     }
 
-    private static void withinContent(StringBuilder out, Spanned text, int start, int end) {
+    private static void withinContent(KnifeHtmlWriter out, Spanned text, int start, int end) throws IOException {
         int next;
 
         for (int i = start; i < end; i = next) {
@@ -146,13 +583,17 @@ public class KnifeParser {
                 nl++;
             }
 
-            withinParagraph(out, text, i, next - nl, nl);
+            if (out.hasOption(TO_HTML_MINIMAL)) {
+                withinParagraphMinimal(out, text, i, next - nl, nl);
+            } else {
+                withinParagraph(out, text, i, next - nl, nl);
+            }
         }
     }
 
     // Copy from https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/text/Html.java,
     // remove some tag because we don't need them in Knife.
-    private static void withinParagraph(StringBuilder out, Spanned text, int start, int end, int nl) {
+    private static void withinParagraph(KnifeHtmlWriter out, Spanned text, int start, int end, int nl) throws IOException {
         int next;
 
         for (int i = start; i < end; i = next) {
@@ -182,13 +623,7 @@ public class KnifeParser {
                 }
 
                 if (spans[j] instanceof BackgroundColorSpan) {
-                    BackgroundColorSpan span = (BackgroundColorSpan) spans[j];
-                    int bgColor = span.getBackgroundColor();
-                    Integer lightBgColor = Constant.DARK_TO_LIGHT_COLOR_MAP.get(bgColor);
-                    if (lightBgColor != null) {
-                        bgColor = lightBgColor;
-                    }
-                    out.append("<mark style=\"background-color:" + bgColor + "\">");
+                    out.append(markOf((BackgroundColorSpan) spans[j]));
                 }
 
                 if (spans[j] instanceof URLSpan) {
@@ -244,7 +679,104 @@ public class KnifeParser {
         }
     }
 
-    private static void withinStyle(StringBuilder out, CharSequence text, int start, int end) {
+    private static void withinParagraphMinimal(KnifeHtmlWriter out, Spanned text, int start, int end, int nl) throws IOException {
+        List<Tag> stack = new ArrayList<>();
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, CharacterStyle.class);
+
+            // Spans writing the same tag share it, keyed by the open tag
+            Map<String, Tag> tags = new LinkedHashMap<>();
+            String image = null;
+            for (CharacterStyle span : text.getSpans(i, next, CharacterStyle.class)) {
+                if (span instanceof ImageSpan) {
+                    image = ((ImageSpan) span).getSource();
+                } else {
+                    addTags(tags, span, text.getSpanEnd(span));
+                }
+            }
+
+            // Close from the first open tag which doesn't go on, the ones below it stay open
+            int keep = 0;
+            while (keep < stack.size() && tags.containsKey(stack.get(keep).open)) {
+                keep++;
+            }
+            for (int j = stack.size() - 1; j >= keep; j--) {
+                out.append(stack.remove(j).close);
+            }
+            for (Tag tag : stack) {
+                tags.remove(tag.open);
+            }
+
+            List<Tag> opening = new ArrayList<>(tags.values());
+            Collections.sort(opening, LONGEST_FIRST);
+            for (Tag tag : opening) {
+                out.append(tag.open);
+                stack.add(tag);
+            }
+
+            if (image != null) {
+                // Don't output the dummy character underlying the image.
+                out.append("<img src=\"");
+                out.append(image);
+                out.append("\">");
+            } else {
+                withinStyle(out, text, i, next);
+            }
+        }
+
+        for (int j = stack.size() - 1; j >= 0; j--) {
+            out.append(stack.get(j).close);
+        }
+
+        for (int i = 0; i < nl; i++) {
+            out.append("<br>");
+        }
+    }
+
+    private static void addTags(Map<String, Tag> tags, CharacterStyle span, int end) {
+        if (span instanceof StyleSpan) {
+            int style = ((StyleSpan) span).getStyle();
+
+            if ((style & Typeface.BOLD) != 0) {
+                addTag(tags, "<b>", "</b>", end);
+            }
+
+            if ((style & Typeface.ITALIC) != 0) {
+                addTag(tags, "<i>", "</i>", end);
+            }
+        } else if (span instanceof UnderlineSpan) {
+            addTag(tags, "<u>", "</u>", end);
+        } else if (span instanceof StrikethroughSpan) {
+            addTag(tags, "<del>", "</del>", end);
+        } else if (span instanceof BackgroundColorSpan) {
+            addTag(tags, markOf((BackgroundColorSpan) span), "</mark>", end);
+        } else if (span instanceof URLSpan) {
+            addTag(tags, "<a href=\"" + ((URLSpan) span).getURL() + "\">", "</a>", end);
+        }
+    }
+
+    private static void addTag(Map<String, Tag> tags, String open, String close, int end) {
+        Tag tag = tags.get(open);
+        if (tag == null) {
+            tags.put(open, new Tag(open, close, end));
+        } else {
+            tag.end = Math.max(tag.end, end);
+        }
+    }
+
+    private static String markOf(BackgroundColorSpan span) {
+        int bgColor = span.getBackgroundColor();
+        Integer lightBgColor = Constant.DARK_TO_LIGHT_COLOR_MAP.get(bgColor);
+        if (lightBgColor != null) {
+            bgColor = lightBgColor;
+        }
+        return "<mark style=\"background-color:" + bgColor + "\">";
+    }
+
+    private static void withinStyle(KnifeHtmlWriter out, CharSequence text, int start, int end) throws IOException {
+        boolean utf8 = out.hasOption(TO_HTML_UTF8);
         for (int i = start; i < end; i++) {
             char c = text.charAt(i);
 
@@ -254,15 +786,23 @@ public class KnifeParser {
                 out.append("&gt;");
             } else if (c == '&') {
                 out.append("&amp;");
+            } else if (c == '"' && utf8) {
+                out.append("&quot;");
             } else if (c >= 0xD800 && c <= 0xDFFF) {
                 if (c < 0xDC00 && i + 1 < end) {
                     char d = text.charAt(i + 1);
                     if (d >= 0xDC00 && d <= 0xDFFF) {
                         i++;
-                        int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
-                        out.append("&#").append(codepoint).append(";");
+                        if (utf8) {
+                            out.append(c).append(d);
+                        } else {
+                            int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
+                            out.append("&#").append(codepoint).append(";");
+                        }
                     }
                 }
+            } else if (c > 0x7E && utf8) {
+                out.append(c);
             } else if (c > 0x7E || c < ' ') {
                 out.append("&#").append((int) c).append(";");
             } else if (c == ' ') {
@@ -278,7 +818,15 @@ public class KnifeParser {
         }
     }
 
-    private static String tidy(String html) {
-        return html.replaceAll("</ul>(<br>)?", "</ul>").replaceAll("</blockquote>(<br>)?", "</blockquote>");
+    private static class Tag {
+        private final String open;
+        private final String close;
+        private int end;
+
+        private Tag(String open, String close, int end) {
+            this.open = open;
+            this.close = close;
+            this.end = end;
+        }
     }
 }
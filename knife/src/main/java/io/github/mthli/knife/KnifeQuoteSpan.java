@@ -52,6 +52,18 @@ public class KnifeQuoteSpan extends QuoteSpan {
         dest.writeInt(quoteGapWidth);
     }
 
+    public int getQuoteColor() {
+        return quoteColor;
+    }
+
+    public int getQuoteStripeWidth() {
+        return quoteStripeWidth;
+    }
+
+    public int getQuoteGapWidth() {
+        return quoteGapWidth;
+    }
+
     @Override
     public int getLeadingMargin(boolean first) {
         return quoteStripeWidth + quoteGapWidth;
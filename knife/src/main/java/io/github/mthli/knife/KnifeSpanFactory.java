@@ -0,0 +1,105 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.URLSpan;
+
+/**
+ * Creates the bullet, quote and link spans of parsed HTML with the look of the editor, so
+ * {@link KnifeParser#fromHtml(android.content.Context, String, KnifeSpanFactory)} sets the final
+ * spans while parsing instead of replacing the framework ones afterwards.
+ */
+public class KnifeSpanFactory {
+    private final int bulletColor;
+    private final int bulletRadius;
+    private final int bulletGapWidth;
+    private final int quoteColor;
+    private final int quoteStripeWidth;
+    private final int quoteGapWidth;
+    private final int linkColor;
+    private final boolean linkUnderline;
+
+    public KnifeSpanFactory(int bulletColor, int bulletRadius, int bulletGapWidth,
+                            int quoteColor, int quoteStripeWidth, int quoteGapWidth,
+                            int linkColor, boolean linkUnderline) {
+        this.bulletColor = bulletColor;
+        this.bulletRadius = bulletRadius;
+        this.bulletGapWidth = bulletGapWidth;
+        this.quoteColor = quoteColor;
+        this.quoteStripeWidth = quoteStripeWidth;
+        this.quoteGapWidth = quoteGapWidth;
+        this.linkColor = linkColor;
+        this.linkUnderline = linkUnderline;
+    }
+
+    public BulletSpan createBulletSpan() {
+        return new KnifeBulletSpan(bulletColor, bulletRadius, bulletGapWidth);
+    }
+
+    public QuoteSpan createQuoteSpan() {
+        return new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGapWidth);
+    }
+
+    public URLSpan createURLSpan(String url) {
+        return new KnifeURLSpan(url, linkColor, linkUnderline);
+    }
+
+    // Replace the framework spans of text parsed without a factory
+    public void replaceSpans(Editable editable, int start, int end) {
+        BulletSpan[] bulletSpans = editable.getSpans(start, end, BulletSpan.class);
+        for (BulletSpan span : bulletSpans) {
+            int spanStart = editable.getSpanStart(span);
+            int spanEnd = paragraphEnd(editable, editable.getSpanEnd(span));
+            editable.removeSpan(span);
+            editable.setSpan(createBulletSpan(), spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        QuoteSpan[] quoteSpans = editable.getSpans(start, end, QuoteSpan.class);
+        for (QuoteSpan span : quoteSpans) {
+            int spanStart = editable.getSpanStart(span);
+            int spanEnd = paragraphEnd(editable, editable.getSpanEnd(span));
+            editable.removeSpan(span);
+            editable.setSpan(createQuoteSpan(), spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        URLSpan[] urlSpans = editable.getSpans(start, end, URLSpan.class);
+        for (URLSpan span : urlSpans) {
+            int spanStart = editable.getSpanStart(span);
+            int spanEnd = editable.getSpanEnd(span);
+            editable.removeSpan(span);
+            editable.setSpan(createURLSpan(span.getURL()), spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    // Factories with the same settings create the same spans, e.g. for the key of KnifeParseCache
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        KnifeSpanFactory other = (KnifeSpanFactory) o;
+        return bulletColor == other.bulletColor && bulletRadius == other.bulletRadius && bulletGapWidth == other.bulletGapWidth
+                && quoteColor == other.quoteColor && quoteStripeWidth == other.quoteStripeWidth && quoteGapWidth == other.quoteGapWidth
+                && linkColor == other.linkColor && linkUnderline == other.linkUnderline;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = bulletColor;
+        hash = 31 * hash + bulletRadius;
+        hash = 31 * hash + bulletGapWidth;
+        hash = 31 * hash + quoteColor;
+        hash = 31 * hash + quoteStripeWidth;
+        hash = 31 * hash + quoteGapWidth;
+        hash = 31 * hash + linkColor;
+        return 31 * hash + (linkUnderline ? 1 : 0);
+    }
+
+    // End of a parsed bullet or quote in the editor, one less when a line break follows it
+    static int paragraphEnd(CharSequence text, int end) {
+        return 0 < end && end < text.length() && text.charAt(end) == '\n' ? end - 1 : end;
+    }
+}
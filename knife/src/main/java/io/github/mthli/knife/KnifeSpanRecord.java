@@ -0,0 +1,177 @@
+package io.github.mthli.knife;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A format span together with the range and flags it had at the time it was recorded.
+ * History entries keep these instead of copying the whole document.
+ */
+public class KnifeSpanRecord {
+    private static final KnifeSpanRecord[] EMPTY = new KnifeSpanRecord[0];
+
+    private final Object span;
+    private final int start;
+    private final int end;
+    private final int flags;
+
+    public KnifeSpanRecord(Object span, int start, int end, int flags) {
+        this.span = span;
+        this.start = start;
+        this.end = end;
+        this.flags = flags;
+    }
+
+    public Object getSpan() {
+        return span;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean sameAs(KnifeSpanRecord other) {
+        return other != null && span == other.span && start == other.start && end == other.end && flags == other.flags;
+    }
+
+    // Only the spans Knife itself creates, the IME composing region is not part of the document
+    public static boolean isRecordable(Spanned text, Object span) {
+        if ((text.getSpanFlags(span) & Spanned.SPAN_COMPOSING) != 0) {
+            return false;
+        }
+
+        return span instanceof StyleSpan
+                || span instanceof UnderlineSpan
+                || span instanceof StrikethroughSpan
+                || span instanceof BackgroundColorSpan
+                || span instanceof BulletSpan
+                || span instanceof QuoteSpan
+                || span instanceof URLSpan;
+    }
+
+    // Type and attributes, equal for two spans which format text the same way
+    public static String keyOf(Object span) {
+        StringBuilder builder = new StringBuilder(span.getClass().getName());
+        if (span instanceof StyleSpan) {
+            builder.append(':').append(((StyleSpan) span).getStyle());
+        } else if (span instanceof BackgroundColorSpan) {
+            builder.append(':').append(((BackgroundColorSpan) span).getBackgroundColor());
+        } else if (span instanceof KnifeBulletSpan) {
+            KnifeBulletSpan bullet = (KnifeBulletSpan) span;
+            builder.append(':').append(bullet.getBulletColor())
+                    .append(':').append(bullet.getBulletRadius())
+                    .append(':').append(bullet.getBulletGapWidth());
+        } else if (span instanceof KnifeQuoteSpan) {
+            KnifeQuoteSpan quote = (KnifeQuoteSpan) span;
+            builder.append(':').append(quote.getQuoteColor())
+                    .append(':').append(quote.getQuoteStripeWidth())
+                    .append(':').append(quote.getQuoteGapWidth());
+        } else if (span instanceof KnifeURLSpan) {
+            KnifeURLSpan link = (KnifeURLSpan) span;
+            builder.append(':').append(link.getLinkColor())
+                    .append(':').append(link.isLinkUnderline())
+                    .append(':').append(link.getURL());
+        } else if (span instanceof URLSpan) {
+            builder.append(':').append(((URLSpan) span).getURL());
+        }
+
+        return builder.toString();
+    }
+
+    // Widen the range by one char on each side so spans which only touch it are caught as well,
+    // getSpans() skips them for a non-empty range
+    public static KnifeSpanRecord[] collect(CharSequence text, int start, int end) {
+        if (!(text instanceof Spanned)) {
+            return EMPTY;
+        }
+
+        Spanned spanned = (Spanned) text;
+        Object[] spans = spanned.getSpans(Math.max(0, start - 1), Math.min(spanned.length(), end + 1), Object.class);
+        List<KnifeSpanRecord> list = new ArrayList<>();
+
+        for (Object span : spans) {
+            if (isRecordable(spanned, span)) {
+                list.add(new KnifeSpanRecord(span, spanned.getSpanStart(span), spanned.getSpanEnd(span), spanned.getSpanFlags(span)));
+            }
+        }
+
+        return list.isEmpty() ? EMPTY : list.toArray(new KnifeSpanRecord[list.size()]);
+    }
+
+    public static void restoreAll(Spannable text, KnifeSpanRecord[] records) {
+        for (KnifeSpanRecord record : records) {
+            if (record.start < 0 || record.end > text.length() || record.start > record.end) {
+                continue;
+            }
+
+            if (record.start == record.end && (record.flags & Spanned.SPAN_POINT_MARK_MASK) == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) {
+                continue;
+            }
+
+            text.setSpan(record.span, record.start, record.end, record.flags);
+        }
+    }
+
+    public static KnifeSpanRecord[] shiftAll(KnifeSpanRecord[] records, int delta) {
+        if (records.length == 0 || delta == 0) {
+            return records;
+        }
+
+        KnifeSpanRecord[] shifted = new KnifeSpanRecord[records.length];
+        for (int i = 0; i < records.length; i++) {
+            KnifeSpanRecord record = records[i];
+            shifted[i] = new KnifeSpanRecord(record.span, record.start + delta, record.end + delta, record.flags);
+        }
+        return shifted;
+    }
+
+    // Integer.MAX_VALUE if there are none
+    public static int lowest(KnifeSpanRecord[] records) {
+        int lowest = Integer.MAX_VALUE;
+        for (KnifeSpanRecord record : records) {
+            lowest = Math.min(lowest, record.start);
+        }
+        return lowest;
+    }
+
+    // -1 if there are none
+    public static int highest(KnifeSpanRecord[] records) {
+        int highest = -1;
+        for (KnifeSpanRecord record : records) {
+            highest = Math.max(highest, record.end);
+        }
+        return highest;
+    }
+
+    public static boolean sameAll(KnifeSpanRecord[] a, KnifeSpanRecord[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+
+        for (int i = 0; i < a.length; i++) {
+            if (!a[i].sameAs(b[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
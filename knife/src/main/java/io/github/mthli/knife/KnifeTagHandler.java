@@ -25,158 +25,359 @@ import android.content.Context;
 import android.graphics.Color;
 import android.text.Editable;
 import android.text.Html;
-import android.text.Spannable;
 import android.text.Spanned;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.BulletSpan;
 import android.text.style.StrikethroughSpan;
+import android.util.Log;
+import android.util.LruCache;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Locale;
+import java.util.Map;
 
 import io.github.mthli.knife.utils.ThemeUtil;
 
 public class KnifeTagHandler implements Html.TagHandler {
+    private static final String TAG = "KnifeTagHandler";
     private static final String BULLET_LI = "li";
     private static final String STRIKETHROUGH_S = "s";
     private static final String STRIKETHROUGH_STRIKE = "strike";
     private static final String STRIKETHROUGH_DEL = "del";
     private static final String MARK = "mark";
-    private int markBackgroundColor = Constant.DEFAULT_MARK_BACKGROUND_COLOR;
-    private Context context;
 
+    private static final int TYPE_LI = 0;
+    private static final int TYPE_STRIKETHROUGH = 1;
+    private static final int TYPE_MARK = 2;
+    private static final Map<String, Integer> TYPES = new HashMap<>();
 
-    public KnifeTagHandler(Context context) {
-        this.context = context;
+    static {
+        TYPES.put(BULLET_LI, TYPE_LI);
+        TYPES.put(STRIKETHROUGH_S, TYPE_STRIKETHROUGH);
+        TYPES.put(STRIKETHROUGH_STRIKE, TYPE_STRIKETHROUGH);
+        TYPES.put(STRIKETHROUGH_DEL, TYPE_STRIKETHROUGH);
+        TYPES.put(MARK, TYPE_MARK);
     }
 
-    private static class Li {
-    }
+    private static final LruCache<String, Integer> COLORS = new LruCache<>(64);
 
-    private static class Strike {
-    }
+    private static Field elementField;
+    private static Field attsField;
+    private static Field dataField;
+    private static Field lengthField;
+    private static boolean reflectionFailed = false;
+
+    private Context context;
+    private AttributesRecorder recorder;
 
-    private static class Mark {
+    // Where the open tags of each type start, innermost last. The output is only appended to
+    // while parsing, so a start offset stays valid until its tag is closed
+    private final ArrayDeque<Integer> liStarts = new ArrayDeque<>();
+    private final ArrayDeque<Integer> strikeStarts = new ArrayDeque<>();
+    private final ArrayDeque<Integer> markStarts = new ArrayDeque<>();
+    private final ArrayDeque<Integer> markColors = new ArrayDeque<>();
+
+    public KnifeTagHandler(Context context) {
+        this.context = context;
     }
 
     @Override
     public void handleTag(boolean opening, String tag, Editable output, XMLReader xmlReader) {
-        if (opening) {
-            if (tag.equalsIgnoreCase(BULLET_LI)) {
-                if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
-                    output.append("\n");
-                }
-                start(output, new Li());
-            } else if (tag.equalsIgnoreCase(STRIKETHROUGH_S) || tag.equalsIgnoreCase(STRIKETHROUGH_STRIKE) || tag.equalsIgnoreCase(STRIKETHROUGH_DEL)) {
-                start(output, new Strike());
-            } else if (tag.equalsIgnoreCase(MARK)) {
-                markBackgroundColor = getMarkBackgroundColor(xmlReader);
-                start(output, new Mark());
+        record(xmlReader);
+
+        Integer type = TYPES.get(tag);
+        if (type == null) {
+            type = TYPES.get(tag.toLowerCase(Locale.US));
+            if (type == null) {
+                return;
             }
-        } else {
-            if (tag.equalsIgnoreCase(BULLET_LI)) {
+        }
+
+        switch (type) {
+            case TYPE_LI:
                 if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
                     output.append("\n");
                 }
-                end(output, Li.class, new BulletSpan());
-            } else if (tag.equalsIgnoreCase(STRIKETHROUGH_S) || tag.equalsIgnoreCase(STRIKETHROUGH_STRIKE) || tag.equalsIgnoreCase(STRIKETHROUGH_DEL)) {
-                end(output, Strike.class, new StrikethroughSpan());
-            } else if (tag.equalsIgnoreCase(MARK)) {
-                end(output, Mark.class, new BackgroundColorSpan(ThemeUtil.optimizeDarkMode(context, markBackgroundColor)));
-            }
+
+                if (opening) {
+                    liStarts.push(output.length());
+                } else {
+                    end(output, liStarts, new BulletSpan());
+                }
+                break;
+            case TYPE_STRIKETHROUGH:
+                if (opening) {
+                    strikeStarts.push(output.length());
+                } else {
+                    end(output, strikeStarts, new StrikethroughSpan());
+                }
+                break;
+            case TYPE_MARK:
+                if (opening) {
+                    markStarts.push(output.length());
+                    markColors.push(getMarkBackgroundColor(xmlReader));
+                } else if (!markColors.isEmpty()) {
+                    int color = markColors.pop();
+                    end(output, markStarts, new BackgroundColorSpan(ThemeUtil.optimizeDarkMode(context, color)));
+                }
+                break;
+            default:
+                break;
         }
     }
 
-    private void start(Editable output, Object mark) {
-        output.setSpan(mark, output.length(), output.length(), Spanned.SPAN_MARK_MARK);
-    }
+    private void end(Editable output, ArrayDeque<Integer> starts, Object replace) {
+        if (starts.isEmpty()) {
+            return;
+        }
 
-    private void end(Editable output, Class kind, Object... replaces) {
-        Object last = getLast(output, kind);
-        int start = output.getSpanStart(last);
+        int start = starts.pop();
         int end = output.length();
-        output.removeSpan(last);
-
         if (start != end) {
-            for (Object replace : replaces) {
-                output.setSpan(replace, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            output.setSpan(replace, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    private int getMarkBackgroundColor(XMLReader xmlReader) {
+        return getMarkBackgroundColor(getProperty(xmlReader, "style"));
+    }
+
+    // Color of the style attribute of a <mark>, shared with KnifeHtmlReader. background-color can be
+    // the decimal int Knife writes, #RGB, #RRGGBB, #AARRGGBB or rgb(r, g, b)
+    static int getMarkBackgroundColor(String styleAttr) {
+        if (styleAttr == null) {
+            return Constant.DEFAULT_MARK_BACKGROUND_COLOR;
+        }
+
+        // A note uses a handful of colors, so each style is parsed once
+        Integer color = COLORS.get(styleAttr);
+        if (color == null) {
+            color = parseMarkBackgroundColor(styleAttr);
+            COLORS.put(styleAttr, color);
+        }
+        return color;
+    }
+
+    private static int parseMarkBackgroundColor(String style) {
+        int start = 0;
+        while (start < style.length()) {
+            int end = style.indexOf(';', start);
+            if (end < 0) {
+                end = style.length();
             }
+
+            int colon = style.indexOf(':', start);
+            if (colon > start && colon < end && style.substring(start, colon).trim().equalsIgnoreCase("background-color")) {
+                Integer color = parseColor(style.substring(colon + 1, end).trim());
+                return color != null ? color : Constant.DEFAULT_MARK_BACKGROUND_COLOR;
+            }
+            start = end + 1;
         }
+        return Constant.DEFAULT_MARK_BACKGROUND_COLOR;
     }
 
-    private static Object getLast(Editable text, Class kind) {
-        Object[] spans = text.getSpans(0, text.length(), kind);
+    private static Integer parseColor(String value) {
+        if (value.startsWith("#")) {
+            long hex = parseHex(value, 1, value.length());
+            if (hex < 0) {
+                return null;
+            }
 
-        if (spans.length == 0) {
-            return null;
-        } else {
-            for (int i = spans.length; i > 0; i--) {
-                if (text.getSpanFlags(spans[i - 1]) == Spannable.SPAN_MARK_MARK) {
-                    return spans[i - 1];
+            switch (value.length() - 1) {
+                case 3:
+                    int r = (int) (hex >> 8) & 0xF;
+                    int g = (int) (hex >> 4) & 0xF;
+                    int b = (int) hex & 0xF;
+                    return 0xFF000000 | r * 0x11 << 16 | g * 0x11 << 8 | b * 0x11;
+                case 6:
+                    return 0xFF000000 | (int) hex;
+                case 8:
+                    return (int) hex;
+                default:
+                    return null;
+            }
+        }
+
+        if (value.regionMatches(true, 0, "rgb(", 0, 4) && value.endsWith(")")) {
+            String[] parts = value.substring(4, value.length() - 1).split(",");
+            if (parts.length != 3) {
+                return null;
+            }
+
+            int color = 0;
+            for (String part : parts) {
+                Integer channel = parseInt(part.trim());
+                if (channel == null || channel < 0 || channel > 255) {
+                    return null;
                 }
+                color = color << 8 | channel;
             }
+            return color | 0xFF000000;
+        }
 
-            return null;
+        return parseInt(value);
+    }
+
+    private static long parseHex(String value, int start, int end) {
+        if (start >= end || end - start > 8) {
+            return -1;
         }
+
+        long hex = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            hex = hex << 4 | digit;
+        }
+        return hex;
     }
 
-    private int getMarkBackgroundColor(XMLReader xmlReader) {
-        String styleAttr = getProperty(xmlReader, "style");
-        if (styleAttr == null) {
-            return Constant.DEFAULT_MARK_BACKGROUND_COLOR;
+    private static Integer parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return null;
         }
-        Pattern pattern = Pattern.compile("background-color:(.*)");
-        Matcher matcher = pattern.matcher(styleAttr);
-        if (matcher.find()) {
-            try {
-                if (matcher.groupCount() >= 1) {
-                    return Integer.parseInt(matcher.group(1));
-                } else {
-                    return Constant.DEFAULT_MARK_BACKGROUND_COLOR;
-                }
-            } catch (NumberFormatException e) {
-                return Constant.DEFAULT_MARK_BACKGROUND_COLOR;
+    }
+
+    // Html calls back for every tag it doesn't know, the first being the <html> TagSoup adds, so the
+    // recorder is in place before <body> and sees the attributes of every tag after that
+    private void record(XMLReader xmlReader) {
+        if (recorder == null) {
+            ContentHandler handler = xmlReader.getContentHandler();
+            if (handler != null) {
+                recorder = new AttributesRecorder(handler);
+                xmlReader.setContentHandler(recorder);
             }
-        } else {
-            return Constant.DEFAULT_MARK_BACKGROUND_COLOR;
         }
     }
 
+    // Attributes of the element being handled, by reflection only if the recorder missed it
+    private String getProperty(XMLReader xmlReader, String property) {
+        if (recorder != null && recorder.attributes != null) {
+            return recorder.attributes.getValue(property);
+        }
+
+        return getPropertyByReflection(xmlReader, property);
+    }
+
     /**
-     * 利用反射获取html标签的属性值
+     * 利用反射获取html标签的属性值，字段只查找一次
      *
      * @param xmlReader
      * @param property
      * @return
      */
-    private String getProperty(XMLReader xmlReader, String property) {
+    private static synchronized String getPropertyByReflection(XMLReader xmlReader, String property) {
+        if (reflectionFailed) {
+            return null;
+        }
+
         try {
-            Field elementField = xmlReader.getClass().getDeclaredField("theNewElement");
-            elementField.setAccessible(true);
+            if (elementField == null) {
+                elementField = xmlReader.getClass().getDeclaredField("theNewElement");
+                elementField.setAccessible(true);
+            }
             Object element = elementField.get(xmlReader);
-            Field attsField = element.getClass().getDeclaredField("theAtts");
-            attsField.setAccessible(true);
+            if (attsField == null) {
+                attsField = element.getClass().getDeclaredField("theAtts");
+                attsField.setAccessible(true);
+            }
             Object atts = attsField.get(element);
-            Field dataField = atts.getClass().getDeclaredField("data");
-            dataField.setAccessible(true);
+            if (dataField == null) {
+                dataField = atts.getClass().getDeclaredField("data");
+                dataField.setAccessible(true);
+                lengthField = atts.getClass().getDeclaredField("length");
+                lengthField.setAccessible(true);
+            }
             String[] data = (String[]) dataField.get(atts);
-            Field lengthField = atts.getClass().getDeclaredField("length");
-            lengthField.setAccessible(true);
             int len = (Integer) lengthField.get(atts);
 
             for (int i = 0; i < len; i++) {
-                // 这边的property换成你自己的属性名就可以了
                 if (property.equals(data[i * 5 + 1])) {
                     return data[i * 5 + 4];
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            // Not TagSoup, or a version with other internals, don't try again
+            reflectionFailed = true;
+            Log.w(TAG, "Can't read attribute " + property, e);
         }
         return null;
     }
+
+    private static class AttributesRecorder implements ContentHandler {
+        private final ContentHandler handler;
+        private Attributes attributes;
+
+        private AttributesRecorder(ContentHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            handler.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            handler.startDocument();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            handler.endDocument();
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            handler.startPrefixMapping(prefix, uri);
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            handler.endPrefixMapping(prefix);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            attributes = atts;
+            handler.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            handler.endElement(uri, localName, qName);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            handler.characters(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            handler.ignorableWhitespace(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            handler.processingInstruction(target, data);
+        }
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            handler.skippedEntity(name);
+        }
+    }
 }
@@ -19,9 +19,20 @@ package io.github.mthli.knife;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.text.Editable;
-import android.text.SpannableStringBuilder;
+import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.PrecomputedText;
+import android.text.SpanWatcher;
+import android.text.Spannable;
 import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
 import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.BackgroundColorSpan;
@@ -35,13 +46,29 @@ import android.util.AttributeSet;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import io.github.mthli.knife.utils.ThemeUtil;
 
 public class KnifeText extends EditText implements TextWatcher {
+    // fromHtmlAsync() and fromHtmlProgressive() of all editors parse on one background thread
+    private static final ExecutorService HTML_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    // Source chars of the first chunk of fromHtmlProgressive(), about a screenful, and of the others
+    private static final int FIRST_HTML_CHUNK = 4 * 1024;
+    private static final int HTML_CHUNK = 32 * 1024;
+    // Source chars of a page of fromHtmlPaged(), and the pages the editor holds as text at most
+    private static final int PAGE_LENGTH = 16 * 1024;
+    private static final int WINDOW_PAGES = 3;
+
     public static final int FORMAT_BOLD = 0x01;
     public static final int FORMAT_ITALIC = 0x02;
     public static final int FORMAT_UNDERLINED = 0x03;
@@ -56,19 +83,74 @@ public class KnifeText extends EditText implements TextWatcher {
     private int bulletGapWidth = 0;
     private boolean historyEnable = true;
     private int historySize = 100;
+    private int historyMaxBytes = 0;
     private int linkColor = 0;
     private boolean linkUnderline = true;
     private int quoteColor = 0;
     private int quoteStripeWidth = 0;
     private int quoteGapWidth = 0;
-
-    private final List<Regret> historyList = new LinkedList<>();
+    private KnifeSpanFactory spanFactory;
+    private KnifeParseLimits parseLimits = KnifeParseLimits.DEFAULT;
+    // Bumped by every fromHtml*() and cancelFromHtml(), a parse only sets its text if it is still current
+    private volatile int htmlGeneration = 0;
+    private Future<?> htmlTask;
+    // Chunks of fromHtmlProgressive() are still to come, history doesn't record meanwhile
+    private boolean htmlLoading = false;
+    // In paged mode the pages [pageStart, pageEnd) of the note are the text of the editor
+    private KnifePagedDocument pagedDocument;
+    private int pageStart;
+    private int pageEnd;
+    private boolean pagesPosted = false;
+    private final Runnable updatePages = new Runnable() {
+        @Override
+        public void run() {
+            pagesPosted = false;
+            updatePages();
+        }
+    };
+
+    private KnifeLineIndex lineIndex;
+    private KnifeHistory history;
     private boolean historyWorking = false;
-    private int historyCursor = 0;
-    private SpannableStringBuilder inputBefore;
+    private KnifeJournal pendingJournal;
+    private int formatStart;
+    private int formatEnd;
+    private KnifeSpanRecord[] formatSpansBefore;
+    private int formatSelection;
+
+    private final KnifeHtmlCache htmlCache = new KnifeHtmlCache();
+    private int htmlOption = 0;
+    private final FormatWatcher formatWatcher = new FormatWatcher();
+    private Editable watchedText;
+    private KnifeFormatState formatState;
+    private final List<CaretFormat> caretFormatList = new ArrayList<>();
+    private int caretFormatsOff = 0;
+    private int caretPosition = -1;
+    private KnifeFormatState dispatchedFormatState;
+    private OnFormatStateChangedListener formatStateListener;
+    private boolean formatStatePosted = false;
+    private final Runnable dispatchFormatState = new Runnable() {
+        @Override
+        public void run() {
+            formatStatePosted = false;
+            if (formatStateListener == null) {
+                return;
+            }
+
+            KnifeFormatState state = getFormatState();
+            if (!state.equals(dispatchedFormatState)) {
+                dispatchedFormatState = state;
+                formatStateListener.onFormatStateChanged(KnifeText.this, state);
+            }
+        }
+    };
+    private boolean textChanging = false;
+    private int inputStart;
+    private int inputBefore;
+    private int inputCount;
+    private String inputRemoved;
+    private KnifeSpanRecord[] inputSpansBefore;
     private int inputBeforeSelectionEnd;
-    private Editable inputLast;
-    private int inputLastSelectionEnd;
 
     public KnifeText(Context context) {
         super(context);
@@ -98,6 +180,7 @@ public class KnifeText extends EditText implements TextWatcher {
         bulletGapWidth = array.getDimensionPixelSize(R.styleable.KnifeText_bulletGapWidth, 0);
         historyEnable = array.getBoolean(R.styleable.KnifeText_historyEnable, true);
         historySize = array.getInt(R.styleable.KnifeText_historySize, 100);
+        historyMaxBytes = array.getInt(R.styleable.KnifeText_historyMaxBytes, 0);
         linkColor = array.getColor(R.styleable.KnifeText_linkColor, 0);
         linkUnderline = array.getBoolean(R.styleable.KnifeText_linkUnderline, true);
         quoteColor = array.getColor(R.styleable.KnifeText_quoteColor, 0);
@@ -105,9 +188,22 @@ public class KnifeText extends EditText implements TextWatcher {
         quoteGapWidth = array.getDimensionPixelSize(R.styleable.KnifeText_quoteCapWidth, 0);
         array.recycle();
 
+        spanFactory = new KnifeSpanFactory(bulletColor, bulletRadius, bulletGapWidth,
+                quoteColor, quoteStripeWidth, quoteGapWidth, linkColor, linkUnderline);
+
         if (historyEnable && historySize <= 0) {
             throw new IllegalArgumentException("historySize must > 0");
         }
+
+        if (historyEnable && historyMaxBytes < 0) {
+            throw new IllegalArgumentException("historyMaxBytes must >= 0");
+        }
+
+        history = new KnifeHistory(historySize, historyMaxBytes);
+
+        // Stays registered while detached, unlike the history watcher
+        lineIndex = new KnifeLineIndex();
+        addTextChangedListener(lineIndex);
     }
 
     @Override
@@ -121,24 +217,48 @@ public class KnifeText extends EditText implements TextWatcher {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         removeTextChangedListener(this);
+        history.checkpoint(getEditableText());
+    }
+
+    @Override
+    public Parcelable onSaveInstanceState() {
+        Parcelable state = super.onSaveInstanceState();
+        history.checkpoint(getEditableText());
+        return state;
     }
 
     // StyleSpan ===================================================================================
 
     public void bold(boolean valid) {
+        if (formatCaret(FORMAT_BOLD, new StyleSpan(Typeface.BOLD), valid)) {
+            return;
+        }
+
+        beginFormat(getSelectionStart(), getSelectionEnd());
         if (valid) {
             styleValid(Typeface.BOLD, getSelectionStart(), getSelectionEnd());
         } else {
             styleInvalid(Typeface.BOLD, getSelectionStart(), getSelectionEnd());
         }
+        normalizeSpans(getSelectionStart(), getSelectionEnd());
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_BOLD, valid, new StyleSpan(Typeface.BOLD));
     }
 
     public void italic(boolean valid) {
+        if (formatCaret(FORMAT_ITALIC, new StyleSpan(Typeface.ITALIC), valid)) {
+            return;
+        }
+
+        beginFormat(getSelectionStart(), getSelectionEnd());
         if (valid) {
             styleValid(Typeface.ITALIC, getSelectionStart(), getSelectionEnd());
         } else {
             styleInvalid(Typeface.ITALIC, getSelectionStart(), getSelectionEnd());
         }
+        normalizeSpans(getSelectionStart(), getSelectionEnd());
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_ITALIC, valid, new StyleSpan(Typeface.ITALIC));
     }
 
     protected void styleValid(int style, int start, int end) {
@@ -170,7 +290,8 @@ public class KnifeText extends EditText implements TextWatcher {
                 return;
         }
 
-        if (start >= end) {
+        // An empty range splits the spans around it
+        if (start > end) {
             return;
         }
 
@@ -221,31 +342,34 @@ public class KnifeText extends EditText implements TextWatcher {
                 return before.length > 0 && after.length > 0 && before[0].getStyle() == style && after[0].getStyle() == style;
             }
         } else {
-            StringBuilder builder = new StringBuilder();
-
-            // Make sure no duplicate characters be added
-            for (int i = start; i < end; i++) {
-                StyleSpan[] spans = getEditableText().getSpans(i, i + 1, StyleSpan.class);
-                for (StyleSpan span : spans) {
-                    if (span.getStyle() == style) {
-                        builder.append(getEditableText().subSequence(i, i + 1).toString());
-                        break;
-                    }
+            StyleSpan[] spans = getEditableText().getSpans(start, end, StyleSpan.class);
+            int count = 0;
+            for (StyleSpan span : spans) {
+                if (span.getStyle() == style) {
+                    spans[count++] = span;
                 }
             }
 
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
+            return isCovered(spans, count, start, end);
         }
     }
 
     // UnderlineSpan ===============================================================================
 
     public void underline(boolean valid) {
+        if (formatCaret(FORMAT_UNDERLINED, new UnderlineSpan(), valid)) {
+            return;
+        }
+
+        beginFormat(getSelectionStart(), getSelectionEnd());
         if (valid) {
             underlineValid(getSelectionStart(), getSelectionEnd());
         } else {
             underlineInvalid(getSelectionStart(), getSelectionEnd());
         }
+        normalizeSpans(getSelectionStart(), getSelectionEnd());
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_UNDERLINED, valid, new UnderlineSpan());
     }
 
     protected void underlineValid(int start, int end) {
@@ -256,7 +380,8 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected void underlineInvalid(int start, int end) {
-        if (start >= end) {
+        // An empty range splits the spans around it
+        if (start > end) {
             return;
         }
 
@@ -295,26 +420,27 @@ public class KnifeText extends EditText implements TextWatcher {
                 return before.length > 0 && after.length > 0;
             }
         } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, UnderlineSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
+            UnderlineSpan[] spans = getEditableText().getSpans(start, end, UnderlineSpan.class);
+            return isCovered(spans, spans.length, start, end);
         }
     }
 
     // StrikethroughSpan ===========================================================================
 
     public void strikethrough(boolean valid) {
+        if (formatCaret(FORMAT_STRIKETHROUGH, new StrikethroughSpan(), valid)) {
+            return;
+        }
+
+        beginFormat(getSelectionStart(), getSelectionEnd());
         if (valid) {
             strikethroughValid(getSelectionStart(), getSelectionEnd());
         } else {
             strikethroughInvalid(getSelectionStart(), getSelectionEnd());
         }
+        normalizeSpans(getSelectionStart(), getSelectionEnd());
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_STRIKETHROUGH, valid, new StrikethroughSpan());
     }
 
     protected void strikethroughValid(int start, int end) {
@@ -326,7 +452,8 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected void strikethroughInvalid(int start, int end) {
-        if (start >= end) {
+        // An empty range splits the spans around it
+        if (start > end) {
             return;
         }
 
@@ -365,25 +492,27 @@ public class KnifeText extends EditText implements TextWatcher {
                 return before.length > 0 && after.length > 0;
             }
         } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, StrikethroughSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
+            StrikethroughSpan[] spans = getEditableText().getSpans(start, end, StrikethroughSpan.class);
+            return isCovered(spans, spans.length, start, end);
         }
     }
 
     // BackgroundColorSpan ==================================================================================
     public void highlight(int colorInt, boolean valid) {
+        if (formatCaret(FORMAT_HIGHLIGHT, new BackgroundColorSpan(ThemeUtil.optimizeDarkMode(getContext(), colorInt)), valid)) {
+            return;
+        }
+
+        beginFormat(getSelectionStart(), getSelectionEnd());
         if (valid) {
             highlightValid(colorInt, getSelectionStart(), getSelectionEnd());
         } else {
             highlightInvalid(colorInt, getSelectionStart(), getSelectionEnd());
         }
+        normalizeSpans(getSelectionStart(), getSelectionEnd());
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_HIGHLIGHT, valid,
+                new BackgroundColorSpan(ThemeUtil.optimizeDarkMode(getContext(), colorInt)));
     }
 
     private void highlightValid(int colorInt, int start, int end) {
@@ -428,91 +557,54 @@ public class KnifeText extends EditText implements TextWatcher {
                 return before.length > 0 && after.length > 0;
             }
         } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, BackgroundColorSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
+            BackgroundColorSpan[] spans = getEditableText().getSpans(start, end, BackgroundColorSpan.class);
+            return isCovered(spans, spans.length, start, end);
         }
     }
 
     // BulletSpan ==================================================================================
     public void bullet(boolean valid) {
+        // Whole lines are changed, not only the selection
+        beginFormat(lineStart(getSelectionStart()), lineEnd(getSelectionEnd()));
         if (valid) {
             bulletValid();
         } else {
             bulletInvalid();
         }
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_BULLET, valid, null);
     }
 
     protected void bulletValid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        KnifeLineIndex index = getLineIndex();
+        int last = index.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = index.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (containBullet(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1; // \n
-            }
-
-            int lineEnd = lineStart + lines[i].length();
-            if (lineStart >= lineEnd) {
-                continue;
-            }
-
-            // Find selection area inside
-            int bulletStart = 0;
-            int bulletEnd = 0;
-            if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                bulletStart = lineStart;
-                bulletEnd = lineEnd;
-            } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                bulletStart = lineStart;
-                bulletEnd = lineEnd;
-            }
-
-            if (bulletStart < bulletEnd) {
-                getEditableText().setSpan(new KnifeBulletSpan(bulletColor, bulletRadius, bulletGapWidth), bulletStart, bulletEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart < lineEnd && isLineSelected(lineStart, lineEnd)) {
+                getEditableText().setSpan(new KnifeBulletSpan(bulletColor, bulletRadius, bulletGapWidth), lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
         }
     }
 
     protected void bulletInvalid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        KnifeLineIndex index = getLineIndex();
+        int last = index.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = index.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (!containBullet(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
-
-            int lineEnd = lineStart + lines[i].length();
-            if (lineStart >= lineEnd) {
-                continue;
-            }
-
-            int bulletStart = 0;
-            int bulletEnd = 0;
-            if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                bulletStart = lineStart;
-                bulletEnd = lineEnd;
-            } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                bulletStart = lineStart;
-                bulletEnd = lineEnd;
-            }
-
-            if (bulletStart < bulletEnd) {
-                BulletSpan[] spans = getEditableText().getSpans(bulletStart, bulletEnd, BulletSpan.class);
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart < lineEnd && isLineSelected(lineStart, lineEnd)) {
+                BulletSpan[] spans = getEditableText().getSpans(lineStart, lineEnd, BulletSpan.class);
                 for (BulletSpan span : spans) {
                     getEditableText().removeSpan(span);
                 }
@@ -521,29 +613,13 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containBullet() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        List<Integer> list = new ArrayList<>();
-
-        for (int i = 0; i < lines.length; i++) {
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
+        KnifeLineIndex index = getLineIndex();
+        int last = index.getLineForOffset(getSelectionEnd());
 
-            int lineEnd = lineStart + lines[i].length();
-            if (lineStart >= lineEnd) {
-                continue;
-            }
-
-            if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                list.add(i);
-            } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                list.add(i);
-            }
-        }
-
-        for (Integer i : list) {
-            if (!containBullet(i)) {
+        for (int i = index.getLineForOffset(getSelectionStart()); i <= last; i++) {
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart < lineEnd && isLineSelected(lineStart, lineEnd) && !containBullet(i)) {
                 return false;
             }
         }
@@ -552,17 +628,13 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containBullet(int index) {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        if (index < 0 || index >= lines.length) {
+        KnifeLineIndex lineIndex = getLineIndex();
+        if (index < 0 || index >= lineIndex.getLineCount()) {
             return false;
         }
 
-        int start = 0;
-        for (int i = 0; i < index; i++) {
-            start = start + lines[i].length() + 1;
-        }
-
-        int end = start + lines[index].length();
+        int start = lineIndex.getLineStart(index);
+        int end = lineIndex.getLineEnd(index);
         if (start >= end) {
             return false;
         }
@@ -574,77 +646,47 @@ public class KnifeText extends EditText implements TextWatcher {
     // QuoteSpan ===================================================================================
 
     public void quote(boolean valid) {
+        // Whole lines are changed, not only the selection
+        beginFormat(lineStart(getSelectionStart()), lineEnd(getSelectionEnd()));
         if (valid) {
             quoteValid();
         } else {
             quoteInvalid();
         }
+        endFormat();
+        formatOtherPages(getSelectionStart(), getSelectionEnd(), FORMAT_QUOTE, valid, null);
     }
 
     protected void quoteValid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        KnifeLineIndex index = getLineIndex();
+        int last = index.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = index.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (containQuote(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1; // \n
-            }
-
-            int lineEnd = lineStart + lines[i].length();
-            if (lineStart >= lineEnd) {
-                continue;
-            }
-
-            int quoteStart = 0;
-            int quoteEnd = 0;
-            if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                quoteStart = lineStart;
-                quoteEnd = lineEnd;
-            } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                quoteStart = lineStart;
-                quoteEnd = lineEnd;
-            }
-
-            if (quoteStart < quoteEnd) {
-                getEditableText().setSpan(new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGapWidth), quoteStart, quoteEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart < lineEnd && isLineSelected(lineStart, lineEnd)) {
+                getEditableText().setSpan(new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGapWidth), lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
         }
     }
 
     protected void quoteInvalid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        KnifeLineIndex index = getLineIndex();
+        int last = index.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = index.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (!containQuote(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
-
-            int lineEnd = lineStart + lines[i].length();
-            if (lineStart >= lineEnd) {
-                continue;
-            }
-
-            int quoteStart = 0;
-            int quoteEnd = 0;
-            if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                quoteStart = lineStart;
-                quoteEnd = lineEnd;
-            } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                quoteStart = lineStart;
-                quoteEnd = lineEnd;
-            }
-
-            if (quoteStart < quoteEnd) {
-                QuoteSpan[] spans = getEditableText().getSpans(quoteStart, quoteEnd, QuoteSpan.class);
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart < lineEnd && isLineSelected(lineStart, lineEnd)) {
+                QuoteSpan[] spans = getEditableText().getSpans(lineStart, lineEnd, QuoteSpan.class);
                 for (QuoteSpan span : spans) {
                     getEditableText().removeSpan(span);
                 }
@@ -653,29 +695,13 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containQuote() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        List<Integer> list = new ArrayList<>();
-
-        for (int i = 0; i < lines.length; i++) {
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
-
-            int lineEnd = lineStart + lines[i].length();
-            if (lineStart >= lineEnd) {
-                continue;
-            }
-
-            if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                list.add(i);
-            } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                list.add(i);
-            }
-        }
+        KnifeLineIndex index = getLineIndex();
+        int last = index.getLineForOffset(getSelectionEnd());
 
-        for (Integer i : list) {
-            if (!containQuote(i)) {
+        for (int i = index.getLineForOffset(getSelectionStart()); i <= last; i++) {
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart < lineEnd && isLineSelected(lineStart, lineEnd) && !containQuote(i)) {
                 return false;
             }
         }
@@ -684,17 +710,13 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containQuote(int index) {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        if (index < 0 || index >= lines.length) {
+        KnifeLineIndex lineIndex = getLineIndex();
+        if (index < 0 || index >= lineIndex.getLineCount()) {
             return false;
         }
 
-        int start = 0;
-        for (int i = 0; i < index; i++) {
-            start = start + lines[i].length() + 1;
-        }
-
-        int end = start + lines[index].length();
+        int start = lineIndex.getLineStart(index);
+        int end = lineIndex.getLineEnd(index);
         if (start >= end) {
             return false;
         }
@@ -703,6 +725,47 @@ public class KnifeText extends EditText implements TextWatcher {
         return spans.length > 0;
     }
 
+    // Whether the first count spans cover every char of [start, end)
+    private boolean isCovered(Object[] spans, int count, int start, int end) {
+        long[] ranges = new long[count];
+        for (int i = 0; i < count; i++) {
+            ranges[i] = (long) getEditableText().getSpanStart(spans[i]) << 32 | getEditableText().getSpanEnd(spans[i]);
+        }
+
+        return isCovered(ranges, count, start, end);
+    }
+
+    // Ranges are packed as start << 32 | end, one sweep over them sorted by start
+    // instead of a span query per char
+    static boolean isCovered(long[] ranges, int count, int start, int end) {
+        Arrays.sort(ranges, 0, count);
+
+        int covered = start;
+        for (int i = 0; i < count; i++) {
+            if ((int) (ranges[i] >>> 32) > covered) {
+                return false;
+            }
+
+            covered = Math.max(covered, (int) ranges[i]);
+            if (covered >= end) {
+                return true;
+            }
+        }
+
+        return covered >= end;
+    }
+
+    // Paragraph formats apply to the lines inside the selection, or the line holding all of it
+    private boolean isLineSelected(int lineStart, int lineEnd) {
+        return lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd
+                || getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd();
+    }
+
+    private KnifeLineIndex getLineIndex() {
+        lineIndex.sync(getEditableText());
+        return lineIndex;
+    }
+
     // URLSpan =====================================================================================
 
     public void link(String link) {
@@ -711,11 +774,16 @@ public class KnifeText extends EditText implements TextWatcher {
 
     // When KnifeText lose focus, use this method
     public void link(String link, int start, int end) {
-        if (link != null && !TextUtils.isEmpty(link.trim())) {
+        beginFormat(start, end);
+        boolean valid = link != null && !TextUtils.isEmpty(link.trim());
+        if (valid) {
             linkValid(link, start, end);
         } else {
             linkInvalid(start, end);
         }
+        normalizeSpans(start, end);
+        endFormat();
+        formatOtherPages(start, end, FORMAT_LINK, valid, valid ? new KnifeURLSpan(link, linkColor, linkUnderline) : null);
     }
 
     protected void linkValid(String link, int start, int end) {
@@ -753,15 +821,8 @@ public class KnifeText extends EditText implements TextWatcher {
                 return before.length > 0 && after.length > 0;
             }
         } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, URLSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
+            URLSpan[] spans = getEditableText().getSpans(start, end, URLSpan.class);
+            return isCovered(spans, spans.length, start, end);
         }
     }
 
@@ -769,37 +830,83 @@ public class KnifeText extends EditText implements TextWatcher {
 
     @Override
     public void beforeTextChanged(CharSequence text, int start, int count, int after) {
-        if (!historyEnable || historyWorking) {
+        textChanging = true;
+        inputStart = start;
+        inputBefore = count;
+        if (!historyEnable || historyWorking || htmlLoading) {
             return;
         }
 
-        inputBefore = new SpannableStringBuilder(text);
+        inputRemoved = text.subSequence(start, start + count).toString();
+        inputSpansBefore = KnifeSpanRecord.collect(text, start, start + count);
         inputBeforeSelectionEnd = getSelectionEnd();
     }
 
     @Override
     public void onTextChanged(CharSequence text, int start, int before, int count) {
-        // DO NOTHING HERE
+        inputCount = count;
+        invalidateFormatState();
     }
 
     @Override
     public void afterTextChanged(Editable text) {
-        if (!historyEnable || historyWorking) {
+        textChanging = false;
+        extendCaretFormats(text);
+        if (!historyEnable || historyWorking || htmlLoading || inputRemoved == null) {
+            return;
+        }
+
+        String inserted = text.subSequence(inputStart, inputStart + inputCount).toString();
+        KnifeSpanRecord[] spansAfter = KnifeSpanRecord.collect(text, inputStart, inputStart + inputCount);
+        Regret regret = new Regret(inputStart, inputRemoved, inserted, inputSpansBefore, spansAfter, inputBeforeSelectionEnd, getSelectionEnd());
+        inputRemoved = null;
+        inputSpansBefore = null;
+        if (regret.isEmpty()) {
             return;
         }
 
-        inputLast = new SpannableStringBuilder(text);
-        inputLastSelectionEnd = getSelectionEnd();
-        if (text != null && text.toString().equals(inputBefore.toString())) {
+        history.push(regret, SystemClock.uptimeMillis());
+    }
+
+    // Span changes don't go through the TextWatcher, record them around each format operation
+    private void beginFormat(int start, int end) {
+        formatSpansBefore = null;
+        if (!historyEnable || historyWorking || htmlLoading || start < 0 || end < start || end > getEditableText().length()) {
+            return;
+        }
+
+        formatStart = start;
+        formatEnd = end;
+        formatSpansBefore = KnifeSpanRecord.collect(getEditableText(), start, end);
+        formatSelection = getSelectionEnd();
+    }
+
+    private void endFormat() {
+        if (formatSpansBefore == null) {
             return;
         }
 
-        if (historyList.size() >= historySize) {
-            historyList.remove(0);
+        KnifeSpanRecord[] spansAfter = KnifeSpanRecord.collect(getEditableText(), formatStart, formatEnd);
+        Regret regret = new Regret(formatStart, formatEnd, formatSpansBefore, spansAfter, formatSelection, getSelectionEnd());
+        formatSpansBefore = null;
+        if (regret.isEmpty()) {
+            return;
         }
 
-        historyList.add(new Regret(inputBefore, inputBeforeSelectionEnd));
-        historyCursor = historyList.size();
+        // A format change is a step of its own, typing before or after it is not merged into it
+        history.closeSession();
+        history.push(regret, SystemClock.uptimeMillis());
+        history.closeSession();
+    }
+
+    private int lineStart(int offset) {
+        KnifeLineIndex index = getLineIndex();
+        return index.getLineStart(index.getLineForOffset(offset));
+    }
+
+    private int lineEnd(int offset) {
+        KnifeLineIndex index = getLineIndex();
+        return index.getLineEnd(index.getLineForOffset(offset));
     }
 
     public void redo() {
@@ -809,16 +916,8 @@ public class KnifeText extends EditText implements TextWatcher {
 
         historyWorking = true;
 
-        if (historyCursor >= historyList.size() - 1) {
-            historyCursor = historyList.size();
-            setText(inputLast);
-            setSelection(inputLastSelectionEnd);
-        } else {
-            historyCursor++;
-            Regret regret = historyList.get(historyCursor);
-            setText(regret.getEditable());
-            setSelection(regret.getSelectionEnd());
-        }
+        int selection = history.redo(getEditableText());
+        setSelection(Math.min(selection, getEditableText().length()));
 
         historyWorking = false;
     }
@@ -830,65 +929,433 @@ public class KnifeText extends EditText implements TextWatcher {
 
         historyWorking = true;
 
-        historyCursor--;
-        Regret regret = historyList.get(historyCursor);
-        setText(regret.getEditable());
-        setSelection(regret.getSelectionEnd());
+        int selection = history.undo(getEditableText());
+        setSelection(Math.min(selection, getEditableText().length()));
 
         historyWorking = false;
     }
 
     public boolean redoValid() {
-        if (!historyEnable || historySize <= 0 || historyList.size() <= 0 || historyWorking) {
+        if (!historyEnable || historySize <= 0 || historyWorking || htmlLoading) {
             return false;
         }
 
-        return historyCursor < historyList.size() - 1 || historyCursor >= historyList.size() - 1 && inputLast != null;
+        return history.canRedo();
     }
 
     public boolean undoValid() {
-        if (!historyEnable || historySize <= 0 || historyWorking) {
+        if (!historyEnable || historySize <= 0 || historyWorking || htmlLoading) {
             return false;
         }
 
-        if (historyList.size() <= 0 || historyCursor <= 0) {
+        return history.canUndo();
+    }
+
+    public void clearHistory() {
+        history.clear();
+    }
+
+    // Byte budget of the history, 0 means only historySize applies
+    public void setHistoryMaxBytes(int historyMaxBytes) {
+        if (historyMaxBytes < 0) {
+            throw new IllegalArgumentException("historyMaxBytes must >= 0");
+        }
+
+        this.historyMaxBytes = historyMaxBytes;
+        history.setMaxBytes(historyMaxBytes);
+    }
+
+    // Sessions kept in memory while a history journal is open
+    public void setHistoryMemorySize(int historyMemorySize) {
+        history.setMemorySize(historyMemorySize);
+    }
+
+    // Keep the history in file, it survives process death as long as the text is restored as well.
+    // Call after the text was set, the journal is only continued if it belongs to the same text
+    public void openHistoryJournal(File file) {
+        closeHistoryJournal();
+
+        final KnifeJournal journal = new KnifeJournal(file);
+        pendingJournal = journal;
+        journal.load(new Runnable() {
+            @Override
+            public void run() {
+                if (pendingJournal != journal) {
+                    return;
+                }
+
+                pendingJournal = null;
+                if (journal.matches(getEditableText())) {
+                    history.restoreJournal(journal, journal.getFirst(), journal.getEnd(), journal.getCursor());
+                } else {
+                    journal.reset();
+                    history.attachJournal(journal);
+                }
+            }
+        });
+    }
+
+    public void closeHistoryJournal() {
+        if (pendingJournal != null) {
+            pendingJournal.close();
+            pendingJournal = null;
+        }
+
+        history.checkpoint(getEditableText());
+        KnifeJournal journal = history.detachJournal();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // Forward ComponentCallbacks2.onTrimMemory() here to drop the oldest history first. The history
+    // stays that small until the editor has the window focus again
+    public void onTrimMemory(int level) {
+        history.onTrimMemory(level);
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasWindowFocus) {
+        super.onWindowFocusChanged(hasWindowFocus);
+        if (hasWindowFocus) {
+            history.restoreMemory();
+        }
+    }
+
+    // FormatState =================================================================================
+
+    public interface OnFormatStateChangedListener {
+        void onFormatStateChanged(KnifeText knifeText, KnifeFormatState state);
+    }
+
+    // Formats of the current selection, cached until the selection or the format spans change
+    public KnifeFormatState getFormatState() {
+        watchFormat();
+        if (formatState == null) {
+            formatState = computeFormatState(getSelectionStart(), getSelectionEnd());
+        }
+
+        return formatState;
+    }
+
+    // Called on the next frame after a change, and only if the formats are not the same as before
+    public void setOnFormatStateChangedListener(OnFormatStateChangedListener listener) {
+        formatStateListener = listener;
+        dispatchedFormatState = listener != null ? getFormatState() : null;
+    }
+
+    @Override
+    protected void onSelectionChanged(int selStart, int selEnd) {
+        super.onSelectionChanged(selStart, selEnd);
+
+        // Called by the super constructor already
+        if (formatWatcher != null) {
+            // Typing moves the caret too, the formats follow it in afterTextChanged()
+            if (caretPosition >= 0 && !textChanging && (selStart != selEnd || selEnd != caretPosition)) {
+                clearCaretFormats();
+            }
+            invalidateFormatState();
+        }
+    }
+
+    // All formats in one getSpans() call over the selection and the lines around it,
+    // with the same rules as the single contain*() checks
+    protected KnifeFormatState computeFormatState(int start, int end) {
+        Editable text = getEditableText();
+        if (start < 0 || end < start || end > text.length()) {
+            return new KnifeFormatState(0);
+        }
+
+        KnifeLineIndex index = getLineIndex();
+        int paragraphStart = index.getLineStart(index.getLineForOffset(start));
+        int paragraphEnd = index.getLineEnd(index.getLineForOffset(end));
+        Object[] spans = text.getSpans(Math.min(paragraphStart, Math.max(0, start - 1)), Math.max(paragraphEnd, Math.min(text.length(), end + 1)), Object.class);
+
+        long[][] ranges = new long[FORMAT_HIGHLIGHT + 1][spans.length];
+        int[] counts = new int[FORMAT_HIGHLIGHT + 1];
+        for (Object span : spans) {
+            int format = KnifeSpanRecord.isRecordable(text, span) ? formatOf(span) : 0;
+            if (format > 0) {
+                ranges[format][counts[format]++] = (long) text.getSpanStart(span) << 32 | text.getSpanEnd(span);
+            }
+        }
+
+        int formats = 0;
+        for (int format = FORMAT_BOLD; format <= FORMAT_HIGHLIGHT; format++) {
+            boolean active;
+            if (format == FORMAT_BULLET || format == FORMAT_QUOTE) {
+                active = isParagraphCovered(ranges[format], counts[format], start, end, index);
+            } else if (start == end) {
+                active = start - 1 >= 0 && start + 1 <= text.length()
+                        && isCovered(ranges[format], counts[format], start - 1, start)
+                        && isCovered(ranges[format], counts[format], start, start + 1);
+            } else {
+                active = isCovered(ranges[format], counts[format], start, end);
+            }
+
+            if (active) {
+                formats |= 1 << format;
+            }
+        }
+
+        if (start == end && start == caretPosition) {
+            for (CaretFormat caretFormat : caretFormatList) {
+                formats |= 1 << caretFormat.format;
+            }
+            formats &= ~caretFormatsOff;
+        }
+
+        return new KnifeFormatState(formats);
+    }
+
+    private static int formatOf(Object span) {
+        if (span instanceof StyleSpan) {
+            switch (((StyleSpan) span).getStyle()) {
+                case Typeface.BOLD:
+                    return FORMAT_BOLD;
+                case Typeface.ITALIC:
+                    return FORMAT_ITALIC;
+                default:
+                    return 0;
+            }
+        } else if (span instanceof UnderlineSpan) {
+            return FORMAT_UNDERLINED;
+        } else if (span instanceof StrikethroughSpan) {
+            return FORMAT_STRIKETHROUGH;
+        } else if (span instanceof BulletSpan) {
+            return FORMAT_BULLET;
+        } else if (span instanceof QuoteSpan) {
+            return FORMAT_QUOTE;
+        } else if (span instanceof URLSpan) {
+            return FORMAT_LINK;
+        } else if (span instanceof BackgroundColorSpan) {
+            return FORMAT_HIGHLIGHT;
+        } else {
+            return 0;
+        }
+    }
+
+    // Every selected line needs a span on it, like containBullet() and containQuote().
+    // Lines and ranges sorted by start are walked together, farthest keeps the largest end
+    // of the ranges starting before the current line ends
+    private boolean isParagraphCovered(long[] ranges, int count, int start, int end, KnifeLineIndex index) {
+        Arrays.sort(ranges, 0, count);
+
+        int next = 0;
+        int farthest = -1;
+        int last = index.getLineForOffset(end);
+        for (int i = index.getLineForOffset(start); i <= last; i++) {
+            int lineStart = index.getLineStart(i);
+            int lineEnd = index.getLineEnd(i);
+            if (lineStart >= lineEnd || !isLineSelected(lineStart, lineEnd)) {
+                continue;
+            }
+
+            while (next < count && (int) (ranges[next] >>> 32) < lineEnd) {
+                farthest = Math.max(farthest, (int) ranges[next++]);
+            }
+
+            if (farthest <= lineStart) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void invalidateFormatState() {
+        formatState = null;
+        if (formatStateListener != null && !formatStatePosted) {
+            formatStatePosted = true;
+            post(dispatchFormatState);
+        }
+    }
+
+    // Span changes don't reach a TextWatcher, so watch the Editable itself; setText() replaces it
+    private void watchFormat() {
+        Editable text = getEditableText();
+        if (text == null || text == watchedText) {
+            return;
+        }
+
+        if (watchedText != null) {
+            watchedText.removeSpan(formatWatcher);
+        }
+        text.setSpan(formatWatcher, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        watchedText = text;
+    }
+
+    private class FormatWatcher implements SpanWatcher, NoCopySpan {
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            onSpan(text, what);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            onSpan(text, what);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            onSpan(text, what);
+        }
+
+        private void onSpan(Spannable text, Object what) {
+            if (text == watchedText && formatOf(what) > 0) {
+                invalidateFormatState();
+            }
+        }
+    }
+
+    // Caret formats ===============================================================================
+
+    // Format switched on or off with an empty selection, it applies to the text typed next.
+    // One span per format grows with the typing instead of a span per char
+    private boolean formatCaret(int format, Object span, boolean valid) {
+        int caret = getSelectionStart();
+        if (caret < 0 || caret != getSelectionEnd()) {
             return false;
         }
 
+        if (caret != caretPosition) {
+            clearCaretFormats();
+            caretPosition = caret;
+        }
+
+        CaretFormat found = null;
+        for (CaretFormat caretFormat : caretFormatList) {
+            if (caretFormat.format == format) {
+                found = caretFormat;
+            }
+        }
+
+        if (valid) {
+            caretFormatsOff &= ~(1 << format);
+            if (found == null) {
+                caretFormatList.add(new CaretFormat(format, span, caret));
+            }
+        } else {
+            caretFormatsOff |= 1 << format;
+            if (found != null) {
+                // What was typed keeps the format, the span just stops growing
+                caretFormatList.remove(found);
+            } else {
+                // Split the span around the caret, so the text typed next is not inside it
+                beginFormat(caret, caret);
+                switch (format) {
+                    case FORMAT_BOLD:
+                        styleInvalid(Typeface.BOLD, caret, caret);
+                        break;
+                    case FORMAT_ITALIC:
+                        styleInvalid(Typeface.ITALIC, caret, caret);
+                        break;
+                    case FORMAT_UNDERLINED:
+                        underlineInvalid(caret, caret);
+                        break;
+                    case FORMAT_STRIKETHROUGH:
+                        strikethroughInvalid(caret, caret);
+                        break;
+                    case FORMAT_HIGHLIGHT:
+                        splitHighlight(caret);
+                        break;
+                    default:
+                        break;
+                }
+                endFormat();
+            }
+        }
+
+        invalidateFormatState();
         return true;
     }
 
-    public void clearHistory() {
-        if (historyList != null) {
-            historyList.clear();
+    // Unlike highlightInvalid() both parts keep their color
+    private void splitHighlight(int caret) {
+        BackgroundColorSpan[] spans = getEditableText().getSpans(caret, caret, BackgroundColorSpan.class);
+        for (BackgroundColorSpan span : spans) {
+            int start = getEditableText().getSpanStart(span);
+            int end = getEditableText().getSpanEnd(span);
+            if (start < caret && caret < end) {
+                int flags = getEditableText().getSpanFlags(span);
+                getEditableText().setSpan(span, start, caret, flags);
+                getEditableText().setSpan(new BackgroundColorSpan(span.getBackgroundColor()), caret, end, flags);
+            }
+        }
+    }
+
+    private void extendCaretFormats(Editable text) {
+        if (caretPosition < 0) {
+            return;
+        }
+
+        // Only typing, deleting or composing right at the caret keeps the formats
+        if (historyWorking || inputStart > caretPosition || inputStart + inputBefore != caretPosition) {
+            clearCaretFormats();
+            return;
+        }
+
+        int end = inputStart + inputCount;
+        for (CaretFormat caretFormat : caretFormatList) {
+            caretFormat.start = Math.min(caretFormat.start, end);
+            if (caretFormat.start < end) {
+                text.setSpan(caretFormat.span, caretFormat.start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                text.removeSpan(caretFormat.span);
+            }
+        }
+        caretPosition = end;
+    }
+
+    private void clearCaretFormats() {
+        for (CaretFormat caretFormat : caretFormatList) {
+            int start = getEditableText().getSpanStart(caretFormat.span);
+            int end = getEditableText().getSpanEnd(caretFormat.span);
+            if (start >= 0) {
+                normalizeSpans(start, end);
+            }
+        }
+
+        caretFormatList.clear();
+        caretFormatsOff = 0;
+        caretPosition = -1;
+    }
+
+    // Start of a page held as text, but the first one. Typing at it goes to the page before
+    private static class PageStart implements NoCopySpan {
+    }
+
+    private static class CaretFormat {
+        private final int format;
+        private final Object span;
+        private int start;
+
+        private CaretFormat(int format, Object span, int start) {
+            this.format = format;
+            this.span = span;
+            this.start = start;
         }
     }
 
     // Helper ======================================================================================
 
     public boolean contains(int format) {
-        int start = getSelectionStart();
-        int end = getSelectionEnd();
-        switch (format) {
-            case FORMAT_BOLD:
-                return containStyle(Typeface.BOLD, start, end);
-            case FORMAT_ITALIC:
-                return containStyle(Typeface.ITALIC, start, end);
-            case FORMAT_UNDERLINED:
-                return containUnderline(start, end);
-            case FORMAT_STRIKETHROUGH:
-                return containStrikethrough(start, end);
-            case FORMAT_BULLET:
-                return containBullet();
-            case FORMAT_QUOTE:
-                return containQuote();
-            case FORMAT_LINK:
-                return containLink(start, end);
-            case FORMAT_HIGHLIGHT:
-                return containHighlight(getSelectionStart(), getSelectionEnd());
-            default:
-                return false;
+        return getFormatState().contains(format);
+    }
+
+    // Merge overlapping or touching spans of the same format, e.g. after loading a document
+    public void normalizeSpans() {
+        beginFormat(0, getEditableText().length());
+        KnifeNormalizer.normalize(getEditableText(), 0, getEditableText().length());
+        endFormat();
+    }
+
+    protected void normalizeSpans(int start, int end) {
+        if (start < 0 || start >= end) {
+            return;
         }
+
+        KnifeNormalizer.normalize(getEditableText(), start, end);
     }
 
     public void clearFormats() {
@@ -908,49 +1375,506 @@ public class KnifeText extends EditText implements TextWatcher {
         imm.toggleSoftInput(InputMethodManager.SHOW_FORCED, 0);
     }
 
+    // Bounds of fromHtml() and updateFromHtml() for notes from sync or paste
+    public void setParseLimits(KnifeParseLimits parseLimits) {
+        this.parseLimits = parseLimits;
+    }
+
+    public interface OnHtmlLoadedListener {
+        void onHtmlLoaded(KnifeText knifeText);
+    }
+
     public void fromHtml(String source) {
         if (source == null) {
             return;
         }
-        source = source.replaceAll("\n", "<br>");
-        SpannableStringBuilder builder = new SpannableStringBuilder();
-        builder.append(KnifeParser.fromHtml(getContext(), source));
-        switchToKnifeStyle(builder, 0, builder.length());
-        setText(builder);
+        cancelFromHtml();
+        leavePagedMode();
+        setText(KnifeParser.fromHtml(getContext(), source, spanFactory, parseLimits));
     }
 
-    public String toHtml() {
-        return KnifeParser.toHtml(getEditableText());
+    public void fromHtmlAsync(String source) {
+        fromHtmlAsync(source, null);
     }
 
-    protected void switchToKnifeStyle(Editable editable, int start, int end) {
-        BulletSpan[] bulletSpans = editable.getSpans(start, end, BulletSpan.class);
-        for (BulletSpan span : bulletSpans) {
-            int spanStart = editable.getSpanStart(span);
-            int spanEnd = editable.getSpanEnd(span);
-            spanEnd = 0 < spanEnd && spanEnd < editable.length() && editable.charAt(spanEnd) == '\n' ? spanEnd - 1 : spanEnd;
-            editable.removeSpan(span);
-            editable.setSpan(new KnifeBulletSpan(bulletColor, bulletRadius, bulletGapWidth), spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    // Parse on a background thread and set the text in one step when done. A later fromHtml(),
+    // updateFromHtml(), fromHtmlAsync() or cancelFromHtml() drops a parse which isn't set yet.
+    // Detaching from the window doesn't, the text is still set while detached, e.g. in a recycled
+    // list item; call cancelFromHtml() when the note is left for good
+    public void fromHtmlAsync(final String source, final OnHtmlLoadedListener listener) {
+        if (source == null) {
+            return;
         }
+        cancelFromHtml();
+        leavePagedMode();
+
+        final int generation = htmlGeneration;
+        final Context context = getContext();
+        final KnifeSpanFactory factory = spanFactory;
+        final KnifeParseLimits limits = parseLimits;
+        final PrecomputedText.Params params = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? getTextMetricsParams() : null;
+        final TextPaint paint = params == null ? new TextPaint(getPaint()) : null;
+        final int width = getWidth() - getTotalPaddingLeft() - getTotalPaddingRight();
+        htmlTask = HTML_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != htmlGeneration) {
+                    return;
+                }
 
-        QuoteSpan[] quoteSpans = editable.getSpans(start, end, QuoteSpan.class);
-        for (QuoteSpan span : quoteSpans) {
-            int spanStart = editable.getSpanStart(span);
-            int spanEnd = editable.getSpanEnd(span);
-            spanEnd = 0 < spanEnd && spanEnd < editable.length() && editable.charAt(spanEnd) == '\n' ? spanEnd - 1 : spanEnd;
-            editable.removeSpan(span);
-            editable.setSpan(new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGapWidth), spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                final Spanned spanned = KnifeParser.fromHtml(context, source, factory, limits);
+                if (generation != htmlGeneration) {
+                    return;
+                }
+
+                precompute(spanned, params, paint, width);
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != htmlGeneration) {
+                            return;
+                        }
+
+                        htmlTask = null;
+                        setText(spanned);
+                        if (listener != null) {
+                            listener.onHtmlLoaded(KnifeText.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public void fromHtmlProgressive(String source) {
+        fromHtmlProgressive(source, null);
+    }
+
+    // Set the first screenful of a long note right away and append the rest chunk by chunk as the
+    // parse thread gets it done, the note can be read and edited meanwhile. The source is cut
+    // anywhere out of a tag, see KnifeParser.nextChunk(), and each chunk is read after the ones
+    // before, so the text ends up the same as fromHtml() with the same limits; below API 24 it is cut
+    // where no element is open. The history of the note before is cleared, and history starts
+    // recording once the last chunk is appended, the listener is called then. Like fromHtmlAsync()
+    // it goes on while detached until cancelFromHtml()
+    public void fromHtmlProgressive(String source, final OnHtmlLoadedListener listener) {
+        if (source == null) {
+            return;
+        }
+        cancelFromHtml();
+        leavePagedMode();
+
+        if (!TextUtils.isEmpty(source) && !source.startsWith("&zwj;")) {
+            source = "&zwj;" + source;
+        }
+
+        // A note too long to format is text as a whole, like with fromHtml()
+        final int cut = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? KnifeParser.CUT_ANYWHERE : KnifeParser.CUT_OUTSIDE;
+        final List<String> tags = new ArrayList<>();
+        int first = source.length() > parseLimits.getMaxLength() ? source.length()
+                : KnifeParser.nextChunk(source, 0, FIRST_HTML_CHUNK, tags, cut);
+        if (first == source.length()) {
+            setText(KnifeParser.fromHtml(getContext(), source, spanFactory, parseLimits));
+            if (listener != null) {
+                listener.onHtmlLoaded(this);
+            }
+            return;
+        }
+
+        // The span count of the chunks read so far goes on, the limits are the ones of the whole note
+        final KnifeHtmlReader.Carry carry = new KnifeHtmlReader.Carry();
+        KnifeChunk chunk = KnifeParser.fromHtmlChunk(getContext(), source.substring(0, first),
+                Collections.<String>emptyList(), tags, carry, spanFactory, parseLimits);
+        htmlLoading = true;
+        history.clear();
+        setText(chunk.getText());
+
+        final String html = source;
+        final int generation = htmlGeneration;
+        final int start = first;
+        final Context context = getContext();
+        final KnifeSpanFactory factory = spanFactory;
+        final KnifeParseLimits limits = parseLimits;
+        htmlTask = HTML_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                int next;
+                for (int i = start; i < html.length(); i = next) {
+                    if (generation != htmlGeneration) {
+                        return;
+                    }
+
+                    List<String> startTags = new ArrayList<>(tags);
+                    next = KnifeParser.nextChunk(html, i, HTML_CHUNK, tags, cut);
+                    final KnifeChunk chunk = KnifeParser.fromHtmlChunk(context, html.substring(i, next), startTags, tags, carry, factory, limits);
+                    final boolean last = next == html.length();
+                    MAIN_HANDLER.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation != htmlGeneration) {
+                                return;
+                            }
+
+                            appendChunk(chunk);
+                            if (last) {
+                                htmlTask = null;
+                                htmlLoading = false;
+                                if (listener != null) {
+                                    listener.onHtmlLoaded(KnifeText.this);
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Appended as the program does, not as typing: caret formats don't extend over the chunk,
+    // and a caret at the end of the text stays where it is. Spans going on from the text before
+    // are joined to the ones there
+    private void appendChunk(KnifeChunk chunk) {
+        int selectionStart = getSelectionStart();
+        int selectionEnd = getSelectionEnd();
+        Editable editable = getEditableText();
+        int start = editable.length();
+        historyWorking = true;
+        editable.append(chunk.getText());
+        chunk.join(editable, start);
+        historyWorking = false;
+        if (selectionStart >= 0 && (getSelectionStart() != selectionStart || getSelectionEnd() != selectionEnd)) {
+            setSelection(selectionStart, selectionEnd);
+        }
+    }
+
+    // Edit a note of several megabytes: only a few pages of it around the visible one are text of the
+    // editor, pages are added ahead while scrolling and the ones far off are written back as HTML.
+    // toHtml() works as usual. A selection only reaches the pages held, but a format applied to all
+    // of them, e.g. after select-all, is applied to the other pages as well. Undo and redo keep
+    // working on the pages held, steps reaching into a page written back are dropped from the
+    // history with the ones before them
+    public void fromHtmlPaged(String source) {
+        if (source == null) {
+            return;
+        }
+        cancelFromHtml();
+        leavePagedMode();
+
+        pagedDocument = new KnifePagedDocument(source, PAGE_LENGTH);
+        pageStart = 0;
+        pageEnd = 0;
+        setText("");
+        while (pageEnd < pagedDocument.getPageCount() && pageEnd < WINDOW_PAGES) {
+            appendPage();
         }
+        setSelection(0);
+        history.clear();
+    }
+
+    public boolean isPaged() {
+        return pagedDocument != null;
+    }
 
-        URLSpan[] urlSpans = editable.getSpans(start, end, URLSpan.class);
-        for (URLSpan span : urlSpans) {
-            int spanStart = editable.getSpanStart(span);
-            int spanEnd = editable.getSpanEnd(span);
+    private void leavePagedMode() {
+        if (pagedDocument == null) {
+            return;
+        }
+
+        pagedDocument = null;
+        Editable editable = getEditableText();
+        for (PageStart span : editable.getSpans(0, editable.length(), PageStart.class)) {
             editable.removeSpan(span);
-            editable.setSpan(new KnifeURLSpan(span.getURL(), linkColor, linkUnderline), spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
     }
 
+    @Override
+    protected void onScrollChanged(int horiz, int vert, int oldHoriz, int oldVert) {
+        super.onScrollChanged(horiz, vert, oldHoriz, oldVert);
+        postUpdatePages();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        postUpdatePages();
+    }
+
+    // Not within scrolling or layout, the text changes
+    private void postUpdatePages() {
+        if (pagedDocument != null && !pagesPosted) {
+            pagesPosted = true;
+            post(updatePages);
+        }
+    }
+
+    // Hold the text of one screen more than visible above and below, a page at a time
+    private void updatePages() {
+        Layout layout = getLayout();
+        if (pagedDocument == null || layout == null || getHeight() == 0) {
+            return;
+        }
+
+        int top = getScrollY();
+        int bottom = top + getHeight();
+        if (layout.getHeight() - bottom < getHeight() && pageEnd < pagedDocument.getPageCount()) {
+            appendPage();
+            if (pageEnd - pageStart > WINDOW_PAGES) {
+                dropFirstPage();
+            }
+        } else if (top < getHeight() && pageStart > 0) {
+            prependPage();
+            if (pageEnd - pageStart > WINDOW_PAGES) {
+                dropLastPage();
+            }
+        } else {
+            return;
+        }
+
+        postUpdatePages();
+    }
+
+    private void appendPage() {
+        Editable editable = getEditableText();
+        KnifeChunk page = pagedDocument.parse(getContext(), pageEnd, editable, spanFactory, parseLimits);
+
+        int start = editable.length();
+        appendChunk(page);
+        if (pageEnd > pageStart) {
+            editable.setSpan(new PageStart(), start, start, Spanned.SPAN_POINT_POINT);
+        }
+        pageEnd++;
+    }
+
+    // The text moves down by the page, so does the scroll position
+    private void prependPage() {
+        pageStart--;
+        Spanned page = pagedDocument.parse(getContext(), pageStart, null, spanFactory, parseLimits).getText();
+
+        Editable editable = getEditableText();
+        historyWorking = true;
+        editable.insert(0, page);
+        pagedDocument.join(editable, pageStart + 1, page.length());
+        editable.setSpan(new PageStart(), page.length(), page.length(), Spanned.SPAN_POINT_POINT);
+        historyWorking = false;
+        history.shift(page.length());
+
+        Layout layout = getLayout();
+        if (layout != null) {
+            scrollTo(getScrollX(), getScrollY() + layout.getLineTop(layout.getLineForOffset(page.length())));
+        }
+    }
+
+    private void dropFirstPage() {
+        Editable editable = getEditableText();
+        PageStart[] starts = getPageStarts(editable);
+        int end = editable.getSpanStart(starts[0]);
+        Layout layout = getLayout();
+        int height = layout != null ? layout.getLineTop(layout.getLineForOffset(end)) : 0;
+
+        Spanned text = (Spanned) editable.subSequence(0, end);
+        int count = pagedDocument.replace(pageStart, pageStart + 1, text, getPageNewlines(), htmlOption);
+        pageStart += count;
+        pageEnd += count - 1;
+        history.crop(end, editable.length());
+
+        historyWorking = true;
+        editable.removeSpan(starts[0]);
+        editable.delete(0, end);
+        historyWorking = false;
+        scrollTo(getScrollX(), Math.max(0, getScrollY() - height));
+    }
+
+    private void dropLastPage() {
+        Editable editable = getEditableText();
+        PageStart[] starts = getPageStarts(editable);
+        int start = editable.getSpanStart(starts[starts.length - 1]);
+
+        int newlines = KnifeParser.trailingNewlines(editable.subSequence(0, start), getPageNewlines());
+        Spanned text = (Spanned) editable.subSequence(start, editable.length());
+        pagedDocument.replace(pageEnd - 1, pageEnd, text, newlines, htmlOption);
+        pageEnd--;
+        history.crop(0, start);
+
+        historyWorking = true;
+        editable.removeSpan(starts[starts.length - 1]);
+        editable.delete(start, editable.length());
+        historyWorking = false;
+    }
+
+    // A format applied to all of the pages held goes to the pages which aren't as well: each is
+    // parsed, formatted as a whole and written back. Only the pages held are in the undo step
+    private void formatOtherPages(int start, int end, final int format, final boolean valid, final Object span) {
+        if (pagedDocument == null || start != 0 || end == 0 || end != getEditableText().length()
+                || pageStart == 0 && pageEnd == pagedDocument.getPageCount()) {
+            return;
+        }
+
+        KnifePagedDocument.PageFormat pageFormat = new KnifePagedDocument.PageFormat() {
+            @Override
+            public void format(Editable page) {
+                formatPage(page, format, valid, span);
+            }
+        };
+        int count = pagedDocument.format(getContext(), 0, pageStart, pageFormat, spanFactory, parseLimits, htmlOption);
+        pageEnd += count - pageStart;
+        pageStart = count;
+        pagedDocument.format(getContext(), pageEnd, pagedDocument.getPageCount(), pageFormat, spanFactory, parseLimits, htmlOption);
+    }
+
+    // All of the page gets the format or none of it does, bullets and quotes go on every line
+    private void formatPage(Editable page, int format, boolean valid, Object span) {
+        for (Object old : page.getSpans(0, page.length(), Object.class)) {
+            if (formatOf(old) == format) {
+                page.removeSpan(old);
+            }
+        }
+
+        if (!valid || page.length() == 0) {
+            return;
+        } else if (format != FORMAT_BULLET && format != FORMAT_QUOTE) {
+            page.setSpan(span, 0, page.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return;
+        }
+
+        int lineStart = 0;
+        for (int i = 0; i <= page.length(); i++) {
+            if (i < page.length() && page.charAt(i) != '\n') {
+                continue;
+            }
+
+            if (i > lineStart) {
+                Object lineSpan = format == FORMAT_BULLET
+                        ? new KnifeBulletSpan(bulletColor, bulletRadius, bulletGapWidth)
+                        : new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGapWidth);
+                page.setSpan(lineSpan, lineStart, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            lineStart = i + 1;
+        }
+    }
+
+    // Line breaks the text before the first page held ends with
+    private int getPageNewlines() {
+        return pagedDocument.getNewlines(getContext(), pageStart, spanFactory, parseLimits);
+    }
+
+    private static PageStart[] getPageStarts(final Spanned text) {
+        PageStart[] starts = text.getSpans(0, text.length(), PageStart.class);
+        Arrays.sort(starts, new Comparator<PageStart>() {
+            @Override
+            public int compare(PageStart a, PageStart b) {
+                return text.getSpanStart(a) - text.getSpanStart(b);
+            }
+        });
+        return starts;
+    }
+
+    // Measure the text on the parse thread, so the layout after setText() finds the metrics of its
+    // words in the shared text layout cache. EditText copies the text into its Editable, so the
+    // PrecomputedText itself can't be set. Below API 28 a StaticLayout of the current width and paint
+    // does the measuring, it is skipped as long as the view has no width
+    @SuppressWarnings("NewApi")
+    private static void precompute(Spanned text, PrecomputedText.Params params, TextPaint paint, int width) {
+        if (params != null) {
+            PrecomputedText.create(text, params);
+        } else if (width > 0) {
+            new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+        }
+    }
+
+    // E.g. when the user leaves the note before it is loaded, the editor doesn't cancel on its own
+    public void cancelFromHtml() {
+        htmlGeneration++;
+        htmlLoading = false;
+        if (htmlTask != null) {
+            htmlTask.cancel(false);
+            htmlTask = null;
+        }
+    }
+
+    // Refresh from a newer version of the same note, e.g. after a sync. Only the difference is
+    // applied, so the layout, the scroll position and the selection are kept as far as possible,
+    // and the whole refresh is a single undo step
+    public void updateFromHtml(String source) {
+        if (source == null) {
+            return;
+        }
+        cancelFromHtml();
+        leavePagedMode();
+        Spanned target = KnifeParser.fromHtml(getContext(), source, spanFactory, parseLimits);
+
+        Editable editable = getEditableText();
+        boolean record = historyEnable && !historyWorking;
+        int selection = getSelectionEnd();
+        historyWorking = true;
+
+        Regret textRegret = null;
+        int prefix = KnifeDiff.prefix(editable, target);
+        int suffix = KnifeDiff.suffix(editable, target, prefix);
+        if (prefix + suffix != editable.length() || prefix + suffix != target.length()) {
+            String removed = editable.subSequence(prefix, editable.length() - suffix).toString();
+            String inserted = target.subSequence(prefix, target.length() - suffix).toString();
+            KnifeSpanRecord[] spansBefore = record ? KnifeSpanRecord.collect(editable, prefix, prefix + removed.length()) : null;
+            editable.replace(prefix, prefix + removed.length(), inserted);
+            if (record) {
+                KnifeSpanRecord[] spansAfter = KnifeSpanRecord.collect(editable, prefix, prefix + inserted.length());
+                textRegret = new Regret(prefix, removed, inserted, spansBefore, spansAfter, selection, getSelectionEnd());
+            }
+        }
+
+        // Only the spans which differ are patched and recorded
+        Regret formatRegret = null;
+        int[] range = KnifeDiff.spanDifference(editable, target);
+        if (range != null) {
+            int start = range[0];
+            int end = range[1];
+            KnifeSpanRecord[] formatBefore = record ? KnifeSpanRecord.collect(editable, start, end) : null;
+            KnifeDiff.patchSpans(editable, start, end, KnifeSpanRecord.collect(target, start, end));
+            if (record) {
+                KnifeSpanRecord[] formatAfter = KnifeSpanRecord.collect(editable, start, end);
+                formatRegret = new Regret(start, end, formatBefore, formatAfter, getSelectionEnd(), getSelectionEnd());
+            }
+        }
+        historyWorking = false;
+
+        if (record) {
+            long time = SystemClock.uptimeMillis();
+
+            history.closeSession();
+            if (textRegret != null) {
+                history.push(textRegret, time);
+            }
+            if (formatRegret != null && !formatRegret.isEmpty()) {
+                if (textRegret != null) {
+                    history.append(formatRegret, time);
+                } else {
+                    history.push(formatRegret, time);
+                }
+            }
+            history.closeSession();
+        }
+    }
+
+    // Only the blocks changed since the last call are serialized again. In paged mode the pages
+    // which aren't held as text are added as they are
+    public String toHtml() {
+        String html = htmlCache.toHtml(getEditableText(), htmlOption);
+        return pagedDocument != null ? pagedDocument.toHtml(pageStart, pageEnd, html, getPageNewlines()) : html;
+    }
+
+    // Combination of the KnifeParser.TO_HTML_* flags used by toHtml()
+    public void setHtmlOption(int htmlOption) {
+        this.htmlOption = htmlOption;
+    }
+
+    /**
+     * @deprecated Not called any more, the parser creates the Knife spans through the span factory.
+     * Kept for subclasses, it still replaces the spans in [start, end] like before.
+     */
+    @Deprecated
+    protected void switchToKnifeStyle(Editable editable, int start, int end) {
+        spanFactory.replaceSpans(editable, start, end);
+    }
+
     public void indent() {
         int index = this.getSelectionStart();
         this.getText().insert(index, "\u3000\u3000");
@@ -43,6 +43,14 @@ public class KnifeURLSpan extends URLSpan {
         dest.writeInt(linkUnderline ? 1 : 0);
     }
 
+    public int getLinkColor() {
+        return linkColor;
+    }
+
+    public boolean isLinkUnderline() {
+        return linkUnderline;
+    }
+
     @Override
     public void updateDrawState(TextPaint ds) {
         ds.setColor(linkColor != 0 ? linkColor : ds.linkColor);
@@ -3,31 +3,138 @@ package io.github.mthli.knife;
 import android.text.Editable;
 
 /**
+ * One step of the undo/redo history, only the changed range is kept:
+ * the text replaced at {@link #getStart()}, the text that replaced it,
+ * and the format spans touching that range before and after the change.
+ * A format step leaves the text alone and only swaps the spans up to {@link #getSpanEnd()}.
+ *
  * @author: WangKe
  * @date: 2024/1/29 0029
  */
 public class Regret {
-    private Editable editable;
-    private int selectionEnd;
+    private final int start;
+    private final String removed;
+    private final String inserted;
+    private final int spanEnd;
+    private final KnifeSpanRecord[] spansBefore;
+    private final KnifeSpanRecord[] spansAfter;
+    private final int selectionBefore;
+    private final int selectionAfter;
 
-    public Regret(Editable editable, int selectionEnd) {
-        this.editable = editable;
-        this.selectionEnd = selectionEnd;
+    public Regret(int start, String removed, String inserted,
+                  KnifeSpanRecord[] spansBefore, KnifeSpanRecord[] spansAfter,
+                  int selectionBefore, int selectionAfter) {
+        this(start, removed, inserted, start, spansBefore, spansAfter, selectionBefore, selectionAfter);
     }
 
-    public Editable getEditable() {
-        return editable;
+    public Regret(int start, int spanEnd,
+                  KnifeSpanRecord[] spansBefore, KnifeSpanRecord[] spansAfter,
+                  int selectionBefore, int selectionAfter) {
+        this(start, "", "", spanEnd, spansBefore, spansAfter, selectionBefore, selectionAfter);
     }
 
-    public void setEditable(Editable editable) {
-        this.editable = editable;
+    private Regret(int start, String removed, String inserted, int spanEnd,
+                   KnifeSpanRecord[] spansBefore, KnifeSpanRecord[] spansAfter,
+                   int selectionBefore, int selectionAfter) {
+        this.start = start;
+        this.removed = removed;
+        this.inserted = inserted;
+        this.spanEnd = spanEnd;
+        this.spansBefore = spansBefore;
+        this.spansAfter = spansAfter;
+        this.selectionBefore = selectionBefore;
+        this.selectionAfter = selectionAfter;
     }
 
-    public int getSelectionEnd() {
-        return selectionEnd;
+    public int getStart() {
+        return start;
     }
 
-    public void setSelectionEnd(int selectionEnd) {
-        this.selectionEnd = selectionEnd;
+    public String getRemoved() {
+        return removed;
+    }
+
+    public String getInserted() {
+        return inserted;
+    }
+
+    public int getSpanEnd() {
+        return spanEnd;
+    }
+
+    public KnifeSpanRecord[] getSpansBefore() {
+        return spansBefore;
+    }
+
+    public KnifeSpanRecord[] getSpansAfter() {
+        return spansAfter;
+    }
+
+    public int getSelectionBefore() {
+        return selectionBefore;
+    }
+
+    public int getSelectionAfter() {
+        return selectionAfter;
+    }
+
+    public boolean isFormat() {
+        return removed.isEmpty() && inserted.isEmpty();
+    }
+
+    public boolean isDeletion() {
+        return inserted.isEmpty() && !removed.isEmpty();
+    }
+
+    // Rough estimate of the memory held by this step
+    public long getBytes() {
+        return 64 + 2L * (removed.length() + inserted.length()) + 32L * (spansBefore.length + spansAfter.length);
+    }
+
+    // The same step for the text moved by delta, e.g. when text is put in front of it
+    public Regret shift(int delta) {
+        return new Regret(start + delta, removed, inserted, spanEnd + delta,
+                KnifeSpanRecord.shiftAll(spansBefore, delta), KnifeSpanRecord.shiftAll(spansAfter, delta),
+                selectionBefore < 0 ? selectionBefore : selectionBefore + delta,
+                selectionAfter < 0 ? selectionAfter : selectionAfter + delta);
+    }
+
+    // First position the step touches, the same in the text before and after it
+    public int getLow() {
+        int low = Math.min(start, Math.min(KnifeSpanRecord.lowest(spansBefore), KnifeSpanRecord.lowest(spansAfter)));
+        if (selectionBefore >= 0) {
+            low = Math.min(low, selectionBefore);
+        }
+        if (selectionAfter >= 0) {
+            low = Math.min(low, selectionAfter);
+        }
+        return low;
+    }
+
+    // Last position the step touches in the text before it, or after it
+    public int getHigh(boolean after) {
+        int high = Math.max(after ? start + inserted.length() : start + removed.length(), spanEnd);
+        high = Math.max(high, KnifeSpanRecord.highest(after ? spansAfter : spansBefore));
+        return Math.max(high, after ? selectionAfter : selectionBefore);
+    }
+
+    public boolean isEmpty() {
+        return removed.equals(inserted) && KnifeSpanRecord.sameAll(spansBefore, spansAfter);
+    }
+
+    public void undo(Editable editable) {
+        apply(editable, inserted, removed, spansBefore);
+    }
+
+    public void redo(Editable editable) {
+        apply(editable, removed, inserted, spansAfter);
+    }
+
+    private void apply(Editable editable, String from, String to, KnifeSpanRecord[] spans) {
+        // Spans the replace stretched or dropped are fixed by the patch, the others stay untouched
+        if (!isFormat()) {
+            editable.replace(start, start + from.length(), to);
+        }
+        KnifeDiff.patchSpans(editable, start, Math.max(start + to.length(), spanEnd), spans);
     }
 }